@@ -0,0 +1,151 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+import hudson.util.TimeUnit2;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.client.OpenstackException;
+import org.openstack.model.compute.Flavor;
+
+import com.google.common.collect.Maps;
+
+/**
+ * The flavors of one {@link Region} of an {@link OpenstackCloud}, listed once and shared by all
+ * the templates of the region. Each region has its own Nova, and so its own flavors.
+ *
+ * <p>
+ * Flavors hardly ever change, so the list is trusted for {@link #TTL}. Once it is older than
+ * that, the old list is still served while a new one is fetched in the background, so that only
+ * the very first lookup has to wait for OpenStack, and {@link #warm()} lists them in the background
+ * as soon as the region is set up, so that not even that one normally does.
+ *
+ * @author Justin SB
+ */
+final class FlavorCatalog {
+    private final Region region;
+
+    /**
+     * Flavors keyed by ID, or null if we never listed them.
+     */
+    private volatile Map<String, Flavor> flavors;
+    private volatile long lastRefreshed;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /**
+     * IDs of the flavors we already warned about not finding.
+     */
+    private final Set<String> unknown = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    FlavorCatalog(Region region) {
+        this.region = region;
+    }
+
+    /**
+     * Gets the flavor with the given ID.
+     *
+     * @return null if there is no such flavor.
+     */
+    public Flavor get(String flavorId) throws OpenstackException {
+        Flavor flavor = getFlavors().get(flavorId);
+        if (flavor == null) {
+            // maybe a flavor that was added since we listed
+            flavor = refreshForMiss(flavorId);
+        }
+        if (flavor == null && unknown.add(flavorId))
+            LOGGER.warning("There is no flavor " + flavorId + " in " + region.getDisplayName()
+                    + ", so the templates that use it get 1 executor, and only their instance count is checked against the quota");
+        return flavor;
+    }
+
+    /**
+     * Lists the flavors in the background if they were never listed.
+     */
+    void warm() {
+        if (flavors == null)
+            refreshInBackground();
+    }
+
+    /**
+     * Lists again for a flavor we don't know, unless someone else just did.
+     * During a burst, the misses for the same flavor all wait for a single listing.
+     */
+    private synchronized Flavor refreshForMiss(String flavorId) throws OpenstackException {
+        Flavor flavor = flavors.get(flavorId);
+        if (flavor == null && System.currentTimeMillis() - lastRefreshed > MIN_REFRESH_INTERVAL)
+            flavor = refresh().get(flavorId);
+        return flavor;
+    }
+
+    /**
+     * Gets all the flavors.
+     */
+    public Collection<Flavor> list() throws OpenstackException {
+        return Collections.unmodifiableCollection(getFlavors().values());
+    }
+
+    private Map<String, Flavor> getFlavors() throws OpenstackException {
+        Map<String, Flavor> m = flavors;
+        if (m == null) {
+            synchronized (this) {
+                m = flavors;
+                if (m == null)
+                    m = refresh();
+            }
+        } else if (System.currentTimeMillis() - lastRefreshed > TTL) {
+            refreshInBackground();
+        }
+        return m;
+    }
+
+    private void refreshInBackground() {
+        if (refreshing.compareAndSet(false, true)) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        synchronized (FlavorCatalog.this) {
+                            refresh();
+                        }
+                    } catch (OpenstackException e) {
+                        LOGGER.log(Level.WARNING, "Failed to list the flavors of " + region.getDisplayName(), e);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Lists the flavors. Callers hold the lock, so that only one listing runs at a time.
+     */
+    private Map<String, Flavor> refresh() throws OpenstackException {
+        Map<String, Flavor> m = Maps.newHashMap();
+        for (Flavor flavor : region.connect().getComputeClient().root().flavors().list()) {
+            m.put(flavor.getId(), flavor);
+        }
+        flavors = m;
+        lastRefreshed = System.currentTimeMillis();
+        return m;
+    }
+
+    /**
+     * How long the list of flavors is trusted.
+     */
+    public static long TTL = Long.getLong(FlavorCatalog.class.getName() + ".ttl", TimeUnit2.HOURS.toMillis(1));
+
+    /**
+     * Lookups of unknown flavors list the flavors again at most this often.
+     */
+    private static final long MIN_REFRESH_INTERVAL = TimeUnit2.MINUTES.toMillis(1);
+
+    private static final Logger LOGGER = Logger.getLogger(FlavorCatalog.class.getName());
+}
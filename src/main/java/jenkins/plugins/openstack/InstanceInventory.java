@@ -0,0 +1,222 @@
+package jenkins.plugins.openstack;
+
+import hudson.util.TimeUnit2;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openstack.client.InstanceState;
+import org.openstack.client.OpenstackAuthenticationException;
+import org.openstack.client.OpenstackException;
+import org.openstack.client.common.OpenstackSession;
+import org.openstack.model.compute.Server;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Locally maintained view of the servers running in the tenant, in one {@link Region} of an {@link OpenstackCloud}.
+ *
+ * <p>
+ * Listing every server in the tenant is expensive, so the full listing is only re-fetched
+ * once it is older than {@link #TTL}. In between, the servers this plugin creates and deletes
+ * are applied locally, so that {@link #countLive()} stays accurate without going back to OpenStack.
+ *
+ * @author Justin SB
+ */
+final class InstanceInventory {
+    private final Region region;
+
+    /**
+     * All known servers, keyed by instance ID.
+     */
+    private final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<String, Server>();
+
+    /**
+     * IDs of the servers that count against the instance cap (starting or running).
+     */
+    private final Set<String> live = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * When each locally created server was recorded, so that a listing that was already
+     * in flight doesn't make us forget about it.
+     */
+    private final ConcurrentMap<String, Long> createdLocally = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Creates that were submitted but that Nova hasn't answered yet. They count against the
+     * instance cap too, or several provisioning rounds in a row would all see the same count.
+     */
+    private final AtomicInteger creating = new AtomicInteger();
+
+    private final Object refreshLock = new Object();
+
+    /**
+     * When the last full listing started; 0 if we never listed.
+     */
+    private volatile long lastRefreshed;
+
+    InstanceInventory(Region region) {
+        this.region = region;
+    }
+
+    /**
+     * Number of instances that are starting or running, including those started outside Jenkins,
+     * and of creates still in flight.
+     */
+    public int countLive() throws OpenstackException {
+        refreshIfStale();
+        return live.size() + creating.get();
+    }
+
+    /**
+     * Gets the last known description of the given server, or null if we don't know about it.
+     */
+    public Server getServer(String instanceId) throws OpenstackException {
+        refreshIfStale();
+        return servers.get(instanceId);
+    }
+
+    /**
+     * All known servers, whatever their state.
+     */
+    public Collection<Server> getServers() throws OpenstackException {
+        refreshIfStale();
+        return Collections.unmodifiableCollection(servers.values());
+    }
+
+    /**
+     * Records that a create is about to be submitted. Every call must be followed by {@link #createDone()}.
+     */
+    public void creating() {
+        creating.incrementAndGet();
+    }
+
+    /**
+     * Records that a create submitted after {@link #creating()} is over, whether it worked or not.
+     * If it worked, {@link #created(Server)} was called first.
+     */
+    public void createDone() {
+        creating.decrementAndGet();
+    }
+
+    /**
+     * Records a server that we just asked OpenStack to create.
+     */
+    public void created(Server server) {
+        String id = server.getId();
+        createdLocally.put(id, System.currentTimeMillis());
+        servers.put(id, server);
+        live.add(id);
+    }
+
+    /**
+     * Records a server that we just asked OpenStack to delete.
+     */
+    public void deleted(String instanceId) {
+        createdLocally.remove(instanceId);
+        servers.remove(instanceId);
+        live.remove(instanceId);
+    }
+
+    /**
+     * Forces the next query to list the servers again.
+     */
+    public void invalidate() {
+        lastRefreshed = 0;
+    }
+
+    /**
+     * Gets the description of the given server from the last listing, without refreshing it.
+     */
+    Server getCachedServer(String instanceId) {
+        return servers.get(instanceId);
+    }
+
+    /**
+     * When the last full listing started; 0 if we never listed.
+     */
+    long getLastRefreshed() {
+        return lastRefreshed;
+    }
+
+    private void refreshIfStale() throws OpenstackException {
+        refreshIfOlderThan(TTL);
+    }
+
+    /**
+     * Lists the servers again, unless the last listing is more recent than the given age.
+     */
+    void refreshIfOlderThan(long maxAge) throws OpenstackException {
+        if (!isOlderThan(maxAge))
+            return;
+        synchronized (refreshLock) {
+            if (isOlderThan(maxAge)) // someone else may have refreshed while we were waiting
+                refresh();
+        }
+    }
+
+    private boolean isOlderThan(long maxAge) {
+        return System.currentTimeMillis() - lastRefreshed >= maxAge;
+    }
+
+    /**
+     * Lists all the servers in the tenant and replaces our view with the result.
+     */
+    private void refresh() throws OpenstackException {
+        long started = System.currentTimeMillis();
+
+        Map<String, Server> listed = Maps.newHashMap();
+        for (Server server : listServers()) {
+            listed.put(server.getId(), server);
+        }
+
+        for (String id : servers.keySet()) {
+            if (listed.containsKey(id))
+                continue;
+            Long created = createdLocally.get(id);
+            if (created != null && created >= started)
+                continue; // created while we were listing; the listing can't know about it yet
+            servers.remove(id);
+            live.remove(id);
+            createdLocally.remove(id);
+        }
+
+        for (Server server : listed.values()) {
+            String id = server.getId();
+            servers.put(id, server);
+            createdLocally.remove(id);
+
+            InstanceState instanceState = InstanceState.get(server);
+            if (instanceState.isActive() || instanceState.isStarting()) {
+                live.add(id);
+            } else {
+                live.remove(id);
+            }
+        }
+
+        lastRefreshed = started;
+    }
+
+    private Iterable<Server> listServers() throws OpenstackException {
+        OpenstackSession session = region.connect();
+        try {
+            return Lists.newArrayList(session.getComputeClient().root().servers().list());
+        } catch (OpenstackAuthenticationException e) {
+            // the token was revoked or expired early; authenticate again and retry once
+            region.invalidateSession(session);
+            return Lists.newArrayList(region.connect().getComputeClient().root().servers().list());
+        }
+    }
+
+    /**
+     * How long a full server listing is trusted before we list again.
+     */
+    public static long TTL = Long.getLong(InstanceInventory.class.getName() + ".ttl", TimeUnit2.SECONDS.toMillis(30));
+}
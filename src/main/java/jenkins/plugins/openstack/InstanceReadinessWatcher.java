@@ -0,0 +1,237 @@
+package jenkins.plugins.openstack;
+
+import hudson.AbortException;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.openstack.client.InstanceState;
+import org.openstack.client.OpenstackException;
+import org.openstack.model.compute.Server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Waits for instances of one {@link Region} of an {@link OpenstackCloud} to become active.
+ *
+ * <p>
+ * Instead of every launcher polling its own instance, all the pending instances are checked
+ * together with a single server listing every {@link #INTERVAL} milliseconds, and the future
+ * of each instance completes once it is active.
+ *
+ * <p>
+ * The future fails if the instance goes into the ERROR state, with a {@link ServerFaultException}
+ * that says why, if it isn't active after
+ * {@link #TIMEOUT}, or if {@link #MAX_FAILED_POLLS} listings in a row fail, so that a launch
+ * never waits forever.
+ *
+ * @author Justin SB
+ */
+final class InstanceReadinessWatcher {
+    private final Region region;
+    private final InstanceInventory inventory;
+
+    private final ConcurrentMap<String, SettableFuture<Server>> pending = new ConcurrentHashMap<String, SettableFuture<Server>>();
+
+    /**
+     * Instances that were missing from the last listing. We only give up on them
+     * if they are still missing from the next one, as the listing may have been
+     * older than the instance.
+     */
+    private final ConcurrentMap<String, Boolean> missing = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * When we started waiting for each pending instance.
+     */
+    private final ConcurrentMap<String, Long> since = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Number of polls in a row that failed. Only touched by the poll.
+     */
+    private int failedPolls;
+
+    /**
+     * True while a poll is scheduled. We only poll while someone is waiting.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    InstanceReadinessWatcher(Region region, InstanceInventory inventory) {
+        this.region = region;
+        this.inventory = inventory;
+    }
+
+    /**
+     * Gets a future that completes with the details of the instance once it is active.
+     *
+     * <p>
+     * The future fails if the instance shuts down or disappears instead.
+     */
+    public ListenableFuture<Server> awaitActive(String instanceId) {
+        SettableFuture<Server> f = SettableFuture.create();
+        SettableFuture<Server> existing = pending.putIfAbsent(instanceId, f);
+        if (existing != null && !existing.isDone()) {
+            f = existing;
+        } else if (existing != null) {
+            pending.put(instanceId, f);
+        }
+        if (f != existing)
+            since.put(instanceId, System.currentTimeMillis());
+
+        if (scheduled.compareAndSet(false, true))
+            SCHEDULER.schedule(new Poll(), 0, TimeUnit.MILLISECONDS);
+        return f;
+    }
+
+    private final class Poll implements Runnable {
+        public void run() {
+            try {
+                poll();
+                failedPolls = 0;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to check the state of pending instances", e);
+                if (++failedPolls >= MAX_FAILED_POLLS) {
+                    // OpenStack isn't answering; let the launches fail rather than wait forever
+                    failedPolls = 0;
+                    for (String instanceId : pending.keySet())
+                        fail(instanceId, new AbortException("Failed to check the state of the instance " + instanceId
+                                + " " + MAX_FAILED_POLLS + " times in a row: " + e.getMessage() + ". Aborting launch."));
+                }
+            } finally {
+                scheduled.set(false);
+                if (!pending.isEmpty() && scheduled.compareAndSet(false, true))
+                    SCHEDULER.schedule(new Poll(), INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void fail(String instanceId, Throwable t) {
+        SettableFuture<Server> f = pending.remove(instanceId);
+        missing.remove(instanceId);
+        since.remove(instanceId);
+        if (f != null)
+            f.setException(t);
+    }
+
+    private void poll() throws OpenstackException {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, SettableFuture<Server>> e : pending.entrySet()) {
+            if (e.getValue().isDone()) { // e.g. cancelled by the launcher
+                pending.remove(e.getKey(), e.getValue());
+                missing.remove(e.getKey());
+                since.remove(e.getKey());
+                continue;
+            }
+            Long started = since.get(e.getKey());
+            if (started != null && now - started > TIMEOUT)
+                fail(e.getKey(), new AbortException("The instance " + e.getKey() + " did not become active within "
+                        + Util.getTimeSpanString(TIMEOUT) + ". Aborting launch."));
+        }
+        if (pending.isEmpty())
+            return;
+
+        // a listing someone else just did is good enough
+        inventory.refreshIfOlderThan(INTERVAL / 2);
+
+        for (Map.Entry<String, SettableFuture<Server>> e : pending.entrySet()) {
+            String instanceId = e.getKey();
+            SettableFuture<Server> f = e.getValue();
+
+            Server server = inventory.getCachedServer(instanceId);
+            if (server == null) {
+                if (missing.putIfAbsent(instanceId, Boolean.TRUE) == null) {
+                    inventory.invalidate(); // make sure the next poll lists again
+                    continue;
+                }
+                f.setException(new AbortException("The instance " + instanceId + " no longer exists. Aborting launch."));
+            } else {
+                // seen again, so an earlier miss was only a stale listing
+                missing.remove(instanceId);
+                InstanceState instanceState = InstanceState.get(server);
+                if ("ERROR".equalsIgnoreCase(server.getStatus())) {
+                    f.setException(new ServerFaultException(instanceId, getFault(instanceId)));
+                } else if (instanceState.isStarting()) {
+                    continue;
+                } else if (instanceState.isActive()) {
+                    f.set(server);
+                } else if (instanceState.isTerminated() || instanceState.isTerminating()) {
+                    f.setException(new AbortException("The instance " + instanceId + " appears to be shut down. Aborting launch."));
+                } else {
+                    LOGGER.info("The instance " + instanceId + " is in an unknown state (" + instanceState + ").");
+                    continue;
+                }
+            }
+            pending.remove(instanceId, f);
+            missing.remove(instanceId);
+            since.remove(instanceId);
+        }
+    }
+
+    /**
+     * Gets the message of the fault Nova recorded for a server in the ERROR state, or "" if it can't be had.
+     * The listing doesn't have it, and neither do the bindings, so it is read over plain HTTP.
+     */
+    private String getFault(String instanceId) {
+        try {
+            HttpURLConnection con = Region.openCompute(region.connect(), "/servers/" + instanceId, FAULT_TIMEOUT);
+            try {
+                if (con.getResponseCode() / 100 != 2)
+                    return "";
+                InputStream in = con.getInputStream();
+                try {
+                    JSONObject fault = JSONObject.fromObject(IOUtils.toString(in, "UTF-8")).getJSONObject("server").optJSONObject("fault");
+                    return fault != null ? fault.optString("message", "") : "";
+                } finally {
+                    in.close();
+                }
+            } finally {
+                con.disconnect();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to get the fault of the instance " + instanceId, e);
+        } catch (JSONException e) {
+            LOGGER.log(Level.FINE, "Failed to get the fault of the instance " + instanceId, e);
+        } catch (OpenstackException e) {
+            LOGGER.log(Level.FINE, "Failed to get the fault of the instance " + instanceId, e);
+        }
+        return "";
+    }
+
+    /**
+     * How often pending instances are checked.
+     */
+    public static long INTERVAL = Long.getLong(InstanceReadinessWatcher.class.getName() + ".interval", 5000);
+
+    /**
+     * How long an instance may take to become active before we give up on it.
+     */
+    public static long TIMEOUT = Long.getLong(InstanceReadinessWatcher.class.getName() + ".timeout", TimeUnit2.MINUTES.toMillis(15));
+
+    /**
+     * Number of failed listings in a row after which the pending launches are failed.
+     */
+    public static int MAX_FAILED_POLLS = Integer.getInteger(InstanceReadinessWatcher.class.getName() + ".maxFailedPolls", 10);
+
+    private static final int FAULT_TIMEOUT = (int) TimeUnit2.SECONDS.toMillis(30);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceReadinessWatcher.class.getName());
+}
@@ -6,6 +6,9 @@ import hudson.model.Descriptor;
 import hudson.model.Hudson;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
 import jenkins.plugins.openstack.Messages;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner.PlannedNode;
@@ -23,9 +26,15 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,18 +44,17 @@ import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
-import org.openstack.client.InstanceState;
 import org.openstack.client.OpenstackAuthenticationException;
 import org.openstack.client.OpenstackCredentials;
 import org.openstack.client.OpenstackException;
 import org.openstack.client.common.OpenstackSession;
 import org.openstack.model.compute.Flavor;
 import org.openstack.model.compute.KeyPair;
-import org.openstack.model.compute.Server;
 import org.openstack.model.identity.Service;
 import org.openstack.model.identity.ServiceEndpoint;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 
@@ -80,9 +88,34 @@ public abstract class OpenstackCloud extends Cloud {
     private final List<SlaveTemplate> templates;
     private transient KeyPair usableKeyPair;
 
-    private transient OpenstackSession session;
-    
-	private static OpenstackCredentials openstackCredentials;
+    /**
+     * Regions we provision into, keyed by name. Templates without a region go to the region the
+     * service catalog lists first, under its own name, so that it is only tracked once.
+     */
+    private transient ConcurrentMap<String, Region> regions;
+
+    /**
+     * Name of the region the service catalog lists first, once we asked.
+     */
+    private transient volatile String defaultRegionName;
+
+    /**
+     * Templates that carry each label atom, in configuration order.
+     */
+    private transient Map<LabelAtom, List<SlaveTemplate>> templatesByAtom;
+
+    /**
+     * Templates that match each label expression we were asked about, in configuration order.
+     */
+    private transient ConcurrentMap<Label, List<SlaveTemplate>> templatesByLabel;
+
+    private transient volatile OpenstackSshKey sshKey;
+
+    /**
+     * Queue items whose demand already went into the {@link WarmPool}s, so that an item that waits
+     * through several provisioning rounds is only counted once.
+     */
+    private transient Set<Integer> countedQueueItems;
 
 	static Secret toSecret(String s) {
         if (s == null) return null;
@@ -108,8 +141,39 @@ public abstract class OpenstackCloud extends Cloud {
     }
 
     protected Object readResolve() {
-        for (SlaveTemplate t : templates)
+        templatesByAtom = Maps.newHashMap();
+        for (SlaveTemplate t : templates) {
             t.parent = this;
+            for (LabelAtom a : t.getLabelSet()) {
+                List<SlaveTemplate> l = templatesByAtom.get(a);
+                if (l == null)
+                    templatesByAtom.put(a, l = new ArrayList<SlaveTemplate>());
+                l.add(t);
+            }
+        }
+        templatesByLabel = new ConcurrentHashMap<Label, List<SlaveTemplate>>();
+        // regions are set up when first used, as finding the default one takes a call to OpenStack
+        regions = new ConcurrentHashMap<String, Region>();
+        defaultRegionName = null;
+        sshKey = null;
+        countedQueueItems = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > MAX_COUNTED_QUEUE_ITEMS;
+            }
+        }));
+        if (!templates.isEmpty()) {
+            // set up the regions, and with them list the flavors, rather than on the first provisioning
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        getRegions();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to set up the regions of " + getDisplayName(), e);
+                    }
+                }
+            });
+        }
         return this;
     }
 
@@ -151,10 +215,37 @@ public abstract class OpenstackCloud extends Cloud {
      * Gets {@link SlaveTemplate} that has the matching {@link Label}.
      */
     public SlaveTemplate getTemplate(Label label) {
-        for (SlaveTemplate t : templates)
-        	if(label == null || label.matches(t.getLabelSet()))
-                return t;
-        return null;
+        List<SlaveTemplate> matching = getTemplates(label);
+        return matching.isEmpty() ? null : matching.get(0);
+    }
+
+    /**
+     * Gets all the {@link SlaveTemplate}s that have the matching {@link Label}, in configuration order.
+     *
+     * <p>
+     * This is called for every queued label every time the queue is looked at, so the result is
+     * remembered for each label. Templates can't change without the cloud being replaced,
+     * so the memo never goes stale.
+     */
+    public List<SlaveTemplate> getTemplates(Label label) {
+        if (label == null)
+            return getTemplates();
+        List<SlaveTemplate> matching = templatesByLabel.get(label);
+        if (matching == null) {
+            if (label instanceof LabelAtom) {
+                matching = templatesByAtom.get(label);
+                if (matching == null)
+                    matching = Collections.emptyList();
+            } else {
+                matching = new ArrayList<SlaveTemplate>();
+                for (SlaveTemplate t : templates)
+                    if (label.matches(t.getLabelSet()))
+                        matching.add(t);
+            }
+            matching = Collections.unmodifiableList(matching);
+            templatesByLabel.put(label, matching);
+        }
+        return matching;
     }
 
 //    /**
@@ -173,35 +264,70 @@ public abstract class OpenstackCloud extends Cloud {
      *
      * <p>
      * This includes those instances that may be started outside Hudson.
+     * The count comes from the {@link InstanceInventory}, so it is cheap to call.
      */
     public int countCurrentEC2Slaves() throws OpenstackException {
-		int n = 0;
-		for (Server server : connect().getComputeClient().root().servers()
-				.list()) {
-			InstanceState instanceState = InstanceState.get(server);
-
-			if (instanceState.isActive() || instanceState.isStarting()) {
-			    n++;
-			}
-//			switch (instanceState) {
-//			case RUNNING:
-//			case PENDING:
-//				n++;
-//				break;
-//			default:
-//				break;
-//			}
-		}
-//        for (Reservation r : connect().describeInstances().getReservations()) {
-//            for (Instance i : r.getInstances()) {
-//                InstanceStateName stateName = InstanceStateName.fromValue(i.getState().getName());
-//                if (stateName == InstanceStateName.Pending || stateName == InstanceStateName.Running)
-//                    n++;
-//            }
-//        }
+        int n = 0;
+        for (Region region : getRegions()) {
+            n += region.getInventory().countLive();
+        }
         return n;
     }
 
+    /**
+     * The regions the templates of this cloud provision into, and any other region we have slaves in.
+     * Each region is listed once, even if some templates name it and others leave it to the default.
+     */
+    Collection<Region> getRegions() throws OpenstackException {
+        for (SlaveTemplate t : templates) {
+            getRegion(t.getRegion());
+        }
+        return regions.values();
+    }
+
+    /**
+     * Gets the region of the given name, which has its own sessions, servers and quota.
+     *
+     * @param name
+     *      empty for the region the service catalog lists first.
+     */
+    Region getRegion(String name) throws OpenstackException {
+        name = Util.fixNull(name);
+        if (name.length() == 0)
+            name = getDefaultRegionName();
+        Region region = regions.get(name);
+        if (region == null) {
+            OpenstackCredentials credentials = new OpenstackCredentials(authUrl != null ? authUrl.toString() : null, accessId, Secret.toString(secretKey), tenant);
+            Region created = new Region(this, name, credentials);
+            region = regions.putIfAbsent(name, created);
+            if (region == null) {
+                region = created;
+                region.getFlavorCatalog().warm();
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Gets the name of the region of the first compute endpoint in the service catalog, which is
+     * what OpenStack uses when no region is asked for. Empty if the catalog has no regions.
+     */
+    private String getDefaultRegionName() throws OpenstackException {
+        String name = defaultRegionName;
+        if (name == null) {
+            name = "";
+            OpenstackSession session = connect(authUrl, accessId, tenant, secretKey);
+            for (Service service : session.getAccess().getServiceCatalog()) {
+                if ("compute".equals(service.getType()) && !service.getEndpoints().isEmpty()) {
+                    name = Util.fixNull(service.getEndpoints().get(0).getRegion());
+                    break;
+                }
+            }
+            defaultRegionName = name;
+        }
+        return name;
+    }
+
     /**
      * Debug command to attach to a running instance.
      */
@@ -245,36 +371,74 @@ public abstract class OpenstackCloud extends Cloud {
     @Override
 	public Collection<PlannedNode> provision(Label label, int excessWorkload) {
         try {
+            final List<SlaveTemplate> candidates = getTemplates(label);
+            List<PlannedNode> r = new ArrayList<PlannedNode>();
+            if (candidates.isEmpty() || excessWorkload <= 0) {
+                return r;
+            }
 
-            final SlaveTemplate t = getTemplate(label);
+            // spread the workload over the templates that match, favoring the ones that have been working well
+            Map<SlaveTemplate, Integer> toCreate = new LinkedHashMap<SlaveTemplate, Integer>();
+            int wanted = 0;
+            int arrived = countNewQueueItems(label);
+            if (arrived > 0) {
+                for (Map.Entry<SlaveTemplate, Integer> share : TemplateSelector.allocate(candidates, arrived).entrySet())
+                    share.getKey().getWarmPool().recordDemand(share.getValue());
+            }
+            for (Map.Entry<SlaveTemplate, Integer> share : TemplateSelector.allocate(candidates, excessWorkload).entrySet()) {
+                SlaveTemplate t = share.getKey();
+                int n = share.getValue() - takeStandbys(t, share.getValue(), r);
+                if (n > 0) {
+                    toCreate.put(t, n);
+                    wanted += n;
+                }
+            }
 
-            List<PlannedNode> r = new ArrayList<PlannedNode>();
-            for( ; excessWorkload>0; excessWorkload-- ) {
-                if(countCurrentEC2Slaves()>=instanceCap) {
-                    LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
-                    break;      // maxed out
+            if (wanted == 0) {
+                return r;
+            }
+            int live = countCurrentEC2Slaves();
+            int count = Math.max(0, Math.min(wanted, instanceCap - live));
+            if (count < wanted) {
+                LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
+            }
+
+            // TODO: record the output somewhere
+            final StreamTaskListener listener = new StreamTaskListener(System.out);
+            for (Map.Entry<SlaveTemplate, Integer> share : toCreate.entrySet()) {
+                if (count == 0) {
+                    break;       // maxed out
+                }
+                final SlaveTemplate t = share.getKey();
+
+                // only ask for what fits in the quota, rather than have Nova turn the rest down halfway through
+                List<QuotaLedger.Reservation> reservations = new ArrayList<QuotaLedger.Reservation>();
+                Flavor flavor = t.getFlavor();
+                while (reservations.size() < Math.min(count, share.getValue())) {
+                    QuotaLedger.Reservation reservation = getRegion(t.getRegion()).getQuotaLedger().reserve(flavor);
+                    if (reservation == null) {
+                        LOGGER.log(Level.INFO, "Out of quota for " + t.getDisplayName() + ", provisioning " + reservations.size() + " of " + share.getValue());
+                        break;
+                    }
+                    reservations.add(reservation);
+                }
+                count -= reservations.size();
+                if (reservations.isEmpty()) {
+                    continue;
                 }
 
-                r.add(new PlannedNode(t.getDisplayName(),
-                        Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                            public Node call() throws Exception {
-                                // TODO: record the output somewhere
-                                OpenstackSlave s = t.provision(new StreamTaskListener(System.out));
-                                Hudson.getInstance().addNode(s);
-                                // EC2 instances may have a long init script. If we declare
-                                // the provisioning complete by returning without the connect
-                                // operation, NodeProvisioner may decide that it still wants
-                                // one more instance, because it sees that (1) all the slaves
-                                // are offline (because it's still being launched) and
-                                // (2) there's no capacity provisioned yet.
-                                //
-                                // deferring the completion of provisioning until the launch
-                                // goes successful prevents this problem.
-                                s.toComputer().connect(false).get();
-                                return s;
-                            }
-                        })
-                        ,t.getNumExecutors()));
+                List<Future<OpenstackSlave>> creates = t.provision(reservations.size(), listener);
+                for (int i = 0; i < creates.size(); i++) {
+                    final Future<OpenstackSlave> create = creates.get(i);
+                    final QuotaLedger.Reservation reservation = reservations.get(i);
+                    r.add(new PlannedNode(t.getDisplayName(),
+                            Computer.threadPoolForRemoting.submit(new Callable<Node>() {
+                                public Node call() throws Exception {
+                                    return launch(t, create, reservation, candidates, listener);
+                                }
+                            })
+                            ,t.getNumExecutors()));
+                }
             }
             return r;
         } catch (OpenstackException e) {
@@ -283,9 +447,156 @@ public abstract class OpenstackCloud extends Cloud {
         }
     }
 
+    /**
+     * Counts the items of the queue that wait for the given label and that we haven't counted before.
+     */
+    private int countNewQueueItems(Label label) {
+        int n = 0;
+        for (Queue.Item item : Hudson.getInstance().getQueue().getItems()) {
+            Label assigned = item.getAssignedLabel();
+            if ((label == null ? assigned == null : label.equals(assigned)) && countedQueueItems.add(item.id))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Takes up to the given number of standby instances of the template, and plans slaves on them.
+     *
+     * @return the number of standby instances taken.
+     */
+    private int takeStandbys(final SlaveTemplate t, int max, List<PlannedNode> r) {
+        final WarmPool pool = t.getWarmPool();
+        int numExecutors = t.getNumExecutors();
+
+        // standby instances are already booted, and already count against the cap
+        int taken = 0;
+        String standby;
+        while (taken < max && (standby = pool.take()) != null) {
+            final String instanceId = standby;
+            r.add(new PlannedNode(t.getDisplayName(),
+                    Computer.threadPoolForRemoting.submit(new Callable<Node>() {
+                        public Node call() throws Exception {
+                            OpenstackSlave s = t.attach(instanceId, new StreamTaskListener(System.out));
+                            Hudson.getInstance().addNode(s);
+                            s.toComputer().connect(false).get();
+                            return s;
+                        }
+                    })
+                    ,numExecutors));
+            taken++;
+        }
+        if (taken > 0) {
+            LOGGER.log(Level.INFO, "Took " + taken + " standby instance(s) of " + t.getDisplayName());
+            // refill in the background rather than waiting for the next maintenance run
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    pool.maintain();
+                }
+            });
+        }
+        return taken;
+    }
+
+    /**
+     * Waits for a slave being created from the given template to come online.
+     *
+     * <p>
+     * If the cloud is out of quota or capacity for the template, the slave is created from
+     * the next best template instead. Either way, the outcome goes into the {@link TemplateHealth}
+     * of the template, for the next time {@link TemplateSelector} picks between them.
+     */
+    private OpenstackSlave launch(SlaveTemplate t, Future<OpenstackSlave> create, QuotaLedger.Reservation reservation, List<SlaveTemplate> candidates, TaskListener listener) throws Exception {
+        long start = System.currentTimeMillis();
+        OpenstackSlave s;
+        try {
+            s = awaitActive(create, reservation);
+        } catch (ExecutionException e) {
+            t.getHealth().recordFailure(e.getCause());
+            if (!TemplateHealth.isCapacityError(e.getCause()))
+                throw e;
+            s = spillOver(t, candidates, listener, e);
+        }
+        SlaveTemplate used = s.getTemplate() != null ? s.getTemplate() : t;
+
+        Hudson.getInstance().addNode(s);
+        // EC2 instances may have a long init script. If we declare
+        // the provisioning complete by returning without the connect
+        // operation, NodeProvisioner may decide that it still wants
+        // one more instance, because it sees that (1) all the slaves
+        // are offline (because it's still being launched) and
+        // (2) there's no capacity provisioned yet.
+        //
+        // deferring the completion of provisioning until the launch
+        // goes successful prevents this problem.
+        try {
+            s.toComputer().connect(false).get();
+        } catch (ExecutionException e) {
+            used.getHealth().recordFailure(e.getCause());
+            throw e;
+        }
+        used.getHealth().recordSuccess(System.currentTimeMillis() - start);
+        return s;
+    }
+
+    /**
+     * Creates a slave from the best of the other candidates, after the given template ran out of capacity.
+     */
+    private OpenstackSlave spillOver(SlaveTemplate failed, List<SlaveTemplate> candidates, TaskListener listener, ExecutionException cause) throws Exception {
+        for (SlaveTemplate alt : TemplateSelector.rank(candidates)) {
+            if (alt == failed || alt.getHealth().isBackingOff())
+                continue;
+            QuotaLedger.Reservation reservation = getRegion(alt.getRegion()).getQuotaLedger().reserve(alt.getFlavor());
+            if (reservation == null)
+                continue;
+            LOGGER.log(Level.INFO, "Out of capacity for " + failed.getDisplayName() + ", trying " + alt.getDisplayName());
+            try {
+                return awaitActive(alt.provision(1, listener).get(0), reservation);
+            } catch (ExecutionException e) {
+                alt.getHealth().recordFailure(e.getCause());
+                if (!TemplateHealth.isCapacityError(e.getCause()))
+                    throw e;
+            } finally {
+                // in case the create couldn't even be submitted
+                reservation.release(false);
+            }
+        }
+        throw cause;
+    }
+
+    /**
+     * Waits for the create, and then for the server to become active, before the slave is added.
+     * Nova accepts a create before it has placed the server, so running out of hosts only shows
+     * as a server in the ERROR state, which needs to fail here to spill over. A server that
+     * fails to become active is deleted, as no slave will ever own it.
+     */
+    private OpenstackSlave awaitActive(Future<OpenstackSlave> create, QuotaLedger.Reservation reservation) throws Exception {
+        OpenstackSlave s;
+        boolean created = false;
+        try {
+            s = create.get();
+            created = true;
+        } finally {
+            // the server takes quota until it is deleted, even if it fails to start;
+            // a create that failed, was cancelled or was interrupted gives its share back
+            reservation.release(created);
+        }
+
+        try {
+            s.getRegion().getReadinessWatcher().awaitActive(s.getInstanceId()).get();
+        } catch (ExecutionException e) {
+            s.getRegion().getReaper().terminate(s.getInstanceId());
+            throw e;
+        } catch (InterruptedException e) {
+            s.getRegion().getReaper().terminate(s.getInstanceId());
+            throw e;
+        }
+        return s;
+    }
+
     @Override
 	public boolean canProvision(Label label) {
-        return getTemplate(label)!=null;
+        return !getTemplates(label).isEmpty();
     }
 
     /**
@@ -308,12 +619,20 @@ public abstract class OpenstackCloud extends Cloud {
 
     /**
      * Connects to EC2 and returns {@link AmazonEC2}, which can then be used to communicate with EC2.
+     *
+     * <p>
+     * The session is shared, and its token is renewed before it expires.
      */
-    public synchronized OpenstackSession connect() throws OpenstackException {
-        if (session == null) {
-            session = connect(authUrl, accessId, tenant, secretKey);
-        }
-        return session;
+    public OpenstackSession connect() throws OpenstackException {
+        return getRegion("").connect();
+    }
+
+    /**
+     * Reports that OpenStack rejected the token of a session obtained from {@link #connect()},
+     * so that the next call to {@link #connect()} authenticates again.
+     */
+    public void invalidateSession(OpenstackSession session) {
+        getRegion("").invalidateSession(session);
     }
 
     /***
@@ -329,12 +648,29 @@ public abstract class OpenstackCloud extends Cloud {
      * @return {@link AmazonEC2} client
      */
     public static OpenstackSession connect(URL authUrl, String accessId, String tenant, Secret secretKey) {
-    	openstackCredentials = new OpenstackCredentials(authUrl.toString(), accessId, Secret.toString(secretKey), tenant);
+        OpenstackCredentials openstackCredentials = new OpenstackCredentials(authUrl.toString(), accessId, Secret.toString(secretKey), tenant);
         OpenstackSession session = OpenstackSession.create();
         session.authenticate(openstackCredentials);
         return session;
     }
 
+    /**
+     * Lists the regions of the endpoints in the service catalog.
+     */
+    static Set<String> listRegions(URL authUrl, String accessId, String tenant, String secretKey) {
+        OpenstackSession session = connect(authUrl, accessId, tenant, secretKey);
+        Set<String> regions = Sets.newTreeSet();
+        for (Service service: session.getAccess().getServiceCatalog()) {
+            for (ServiceEndpoint endpoint : service.getEndpoints()) {
+                String region = endpoint.getRegion();
+                if (!Strings.isNullOrEmpty(region)) {
+                    regions.add(region);
+                }
+            }
+        }
+        return regions;
+    }
+
     /***
      * Convert a configured hostname like 'us-east-1' to a FQDN or ip address
      */
@@ -412,17 +748,7 @@ public abstract class OpenstackCloud extends Cloud {
                     && !StringUtils.isEmpty(accessId)
                     && !StringUtils.isEmpty(secretKey)
                     ) {
-                OpenstackSession session = connect(new URL(authUrl), accessId, tenant, secretKey);
-                Set<String> regions = Sets.newHashSet();
-                for (Service service: session.getAccess().getServiceCatalog()) {
-                    for (ServiceEndpoint endpoint : service.getEndpoints()) {
-                        String region = endpoint.getRegion();
-                        if (!Strings.isNullOrEmpty(region)) {
-                            regions.add(region);
-                        }
-                    }
-                }
-                for (String region : regions) {
+                for (String region : listRegions(new URL(authUrl), accessId, tenant, secretKey)) {
                     model.add(region, region);
                 }
             }
@@ -512,6 +838,11 @@ public abstract class OpenstackCloud extends Cloud {
         }
     }
 
+    /**
+     * How many queue items we remember having counted towards the demand of the {@link WarmPool}s.
+     */
+    private static final int MAX_COUNTED_QUEUE_ITEMS = 10000;
+
     private static final Logger LOGGER = Logger.getLogger(OpenstackCloud.class.getName());
 
     private static boolean isSSL(URL endpoint) {
@@ -542,8 +873,18 @@ public abstract class OpenstackCloud extends Cloud {
         return id;
     }
     
+    /**
+     * Gets the SSH key of this cloud.
+     *
+     * <p>
+     * The same instance is handed out until the configuration changes, so the
+     * keypair it resolves in OpenStack is shared by all the templates.
+     */
     public OpenstackSshKey getSshKeyPair() {
-        OpenstackSshKey sshKey = new OpenstackSshKey(sshPublicKey, sshPrivateKey.getPlainText());
-        return sshKey;
+        OpenstackSshKey key = sshKey;
+        if (key == null) {
+            key = sshKey = new OpenstackSshKey(sshPublicKey, sshPrivateKey.getPlainText());
+        }
+        return key;
     }
 }
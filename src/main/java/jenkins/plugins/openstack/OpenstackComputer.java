@@ -61,7 +61,7 @@ public class OpenstackComputer extends SlaveComputer {
     }
 
 	private OpenstackComputeClient getComputeClient() {
-		OpenstackSession session = OpenstackCloud.get(getCloudId()).connect();
+		OpenstackSession session = getNode().getRegion().connect();
     	OpenstackComputeClient computeClient = session.getComputeClient();
 		return computeClient;
 	}
@@ -88,6 +88,13 @@ public class OpenstackComputer extends SlaveComputer {
         return instanceDetails = _describeInstance();
     }
 
+    /**
+     * Replaces the cached description with one we got from elsewhere, such as a server listing.
+     */
+    void setInstanceDescription(Server details) {
+        instanceDetails = details;
+    }
+
     /**
      * Gets the current state of the instance.
      *
@@ -148,7 +155,7 @@ public class OpenstackComputer extends SlaveComputer {
         return getNode().getRootCommandPrefix();
     }
 
-	public String getPublicHost(Server details) {
+	public static String getPublicHost(Server details) {
 		String address = details.getAccessIpV4();
 		if (!Strings.isNullOrEmpty(address)) {
 			return address;
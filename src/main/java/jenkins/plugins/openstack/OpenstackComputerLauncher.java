@@ -1,64 +1,96 @@
 package jenkins.plugins.openstack;
 
+import hudson.AbortException;
 import hudson.model.TaskListener;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 
-import java.io.IOException;
 import java.io.PrintStream;
+import java.util.concurrent.ExecutionException;
 
-import org.openstack.client.InstanceState;
-import org.openstack.client.OpenstackException;
 import org.openstack.model.compute.Server;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * {@link ComputerLauncher} for EC2 that waits for the instance to really come up before proceeding to
  * the real user-specified {@link ComputerLauncher}.
  *
+ * <p>
+ * The waiting is done by the {@link InstanceReadinessWatcher} of the cloud, which checks all the
+ * pending instances together, and the rest of the launch is asynchronous too, so that a launch
+ * only takes threads while it has work to do. The one exception is the thread that called
+ * {@link #launch(SlaveComputer, TaskListener)}, which is held until the launch is over.
+ *
  * @author Kohsuke Kawaguchi
  */
 public abstract class OpenstackComputerLauncher extends ComputerLauncher {
     @Override
     public void launch(SlaveComputer _computer, TaskListener listener) {
-        try {
-            OpenstackComputer computer = (OpenstackComputer)_computer;
-            PrintStream logger = listener.getLogger();
+        final OpenstackComputer computer = (OpenstackComputer)_computer;
+        final PrintStream logger = listener.getLogger();
 
-            OUTER:
-            while(true) {
-                InstanceState instanceState = computer.getState();
-                if (instanceState.isStarting()) {
-                    Thread.sleep(5000); // check every 5 secs
-                    continue OUTER;
-                }
+        logger.println("Waiting for the instance "+computer.getInstanceId()+" to become active");
+        final ListenableFuture<Server> active = computer.getNode().getRegion().getReadinessWatcher().awaitActive(computer.getInstanceId());
+        final SettableFuture<Object> launched = SettableFuture.create();
+        Futures.addCallback(active, new FutureCallback<Server>() {
+            public void onSuccess(Server details) {
+                try {
+                    computer.setInstanceDescription(details);
+                    final ListenableFuture<?> stage2 = launch(computer, logger, details);
+                    launched.addListener(new Runnable() {
+                        public void run() {
+                            if (launched.isCancelled())
+                                stage2.cancel(false);
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                    Futures.addCallback(stage2, new FutureCallback<Object>() {
+                        public void onSuccess(Object result) {
+                            launched.set(result);
+                        }
 
-                if (instanceState.isActive()) {
-                    break OUTER;
+                        public void onFailure(Throwable t) {
+                            launched.setException(t);
+                        }
+                    });
+                } catch (Throwable t) {
+                    launched.setException(t);
                 }
+            }
 
-                if (instanceState.isTerminated() || instanceState.isTerminating()) {
-                    // abort
-                    logger.println("The instance "+computer.getInstanceId()+" appears to be shut down. Aborting launch.");
-                    return;
-                }
-                
-                logger.println("The instance "+computer.getInstanceId()+" is in an unknown state (" + instanceState + ").");
+            public void onFailure(Throwable t) {
+                launched.setException(t);
             }
+        });
 
-            launch(computer, logger, computer.describeInstance());
-        } catch (OpenstackException e) {
-            e.printStackTrace(listener.error(e.getMessage()));
-        } catch (IOException e) {
-            e.printStackTrace(listener.error(e.getMessage()));
+        try {
+            // SlaveComputer treats a launch that returns without a channel as failed, so this
+            // thread has to stay until we are done, one per launch. No other thread is held
+            // while we wait for the instance or for SSH; that is done by timers.
+            launched.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AbortException)
+                logger.println(cause.getMessage());
+            else
+                cause.printStackTrace(listener.error(cause.getMessage()));
         } catch (InterruptedException e) {
+            active.cancel(false);
+            launched.cancel(false);
             e.printStackTrace(listener.error(e.getMessage()));
         }
-
     }
 
     /**
      * Stage 2 of the launch. Called after the EC2 instance comes up.
+     *
+     * <p>
+     * This must not block; it starts the launch and returns a future that completes once
+     * the slave agent is connected.
      */
-    protected abstract void launch(OpenstackComputer computer, PrintStream logger, Server details)
-            throws OpenstackException, IOException, InterruptedException;
-}
\ No newline at end of file
+    protected abstract ListenableFuture<?> launch(OpenstackComputer computer, PrintStream logger, Server details);
+}
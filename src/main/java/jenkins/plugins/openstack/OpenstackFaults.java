@@ -0,0 +1,122 @@
+package jenkins.plugins.openstack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Locale;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.openstack.client.OpenstackAuthenticationException;
+import org.openstack.client.OpenstackNotFoundException;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+/**
+ * Tells what kind of fault OpenStack answered with.
+ *
+ * <p>
+ * The bindings only have exception types for 401 and 404. Any other status ends up as an
+ * {@link org.openstack.client.OpenstackException} caused by the {@link UniformInterfaceException}
+ * of the Jersey client, whose response carries the status and the fault that Nova sent back,
+ * e.g. <tt>{"overLimit": {"code": 413, "message": "..."}}</tt>.
+ *
+ * @author Justin SB
+ */
+final class OpenstackFaults {
+    private OpenstackFaults() {}
+
+    /**
+     * Gets the HTTP status of the failure, or 0 if it didn't come from an HTTP response.
+     */
+    static int getStatus(Throwable t) {
+        if (t instanceof OpenstackNotFoundException)
+            return 404;
+        if (t instanceof OpenstackAuthenticationException)
+            return 401;
+        ClientResponse response = getResponse(t);
+        return response != null ? response.getStatus() : 0;
+    }
+
+    /**
+     * Gets the message of the fault that OpenStack sent back, or "" if there is none.
+     */
+    static String getMessage(Throwable t) {
+        ClientResponse response = getResponse(t);
+        if (response == null)
+            return "";
+        String body = getBody(response);
+        try {
+            JSONObject fault = JSONObject.fromObject(body);
+            // the fault is wrapped in an object named after its kind, e.g. "badRequest"
+            for (Iterator<?> itr = fault.values().iterator(); itr.hasNext();) {
+                Object v = itr.next();
+                if (v instanceof JSONObject && ((JSONObject) v).has("message"))
+                    return ((JSONObject) v).getString("message");
+            }
+        } catch (JSONException e) {
+            // not a fault, e.g. an HTML error page from a proxy
+        }
+        return body;
+    }
+
+    /**
+     * Whether Nova turned down a request because the tenant is over its quota:
+     * 413 "overLimit", or 403 "Quota exceeded".
+     */
+    static boolean isOverQuota(Throwable t) {
+        int status = getStatus(t);
+        return status == 413 || (status == 403 && getMessage(t).toLowerCase(Locale.ENGLISH).contains("quota exceeded"));
+    }
+
+    /**
+     * Whether Nova accepted a create, but then put the server into the ERROR state because
+     * no compute host had room for it.
+     */
+    static boolean isNoValidHost(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof ServerFaultException)
+                return ((ServerFaultException) t).isNoValidHost();
+        }
+        return false;
+    }
+
+    /**
+     * Whether Nova turned down a create because it doesn't know the keypair: 400 "Invalid key_name provided".
+     * Other faults of a create, e.g. a missing image or flavor, don't name the key.
+     */
+    static boolean isInvalidKeyName(Throwable t) {
+        int status = getStatus(t);
+        return (status == 400 || status == 404) && getMessage(t).contains("key_name");
+    }
+
+    private static ClientResponse getResponse(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof UniformInterfaceException)
+                return ((UniformInterfaceException) t).getResponse();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the body of the response. Jersey buffers it when it throws, so it can be read again.
+     */
+    private static String getBody(ClientResponse response) {
+        InputStream in = response.getEntityInputStream();
+        if (in == null)
+            return "";
+        try {
+            if (in.markSupported())
+                in.mark(Integer.MAX_VALUE);
+            String body = IOUtils.toString(in, "UTF-8");
+            if (in.markSupported())
+                in.reset();
+            return body;
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
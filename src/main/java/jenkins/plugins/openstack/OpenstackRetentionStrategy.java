@@ -1,6 +1,8 @@
 package jenkins.plugins.openstack;
 
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
 import hudson.slaves.RetentionStrategy;
 import hudson.util.TimeUnit2;
 
@@ -20,17 +22,72 @@ public class OpenstackRetentionStrategy extends RetentionStrategy<OpenstackCompu
 
     @Override
 	public synchronized long check(OpenstackComputer c) {
-        if (c.isIdle() && !disabled) {
-            // TODO: really think about the right strategy here
+        OpenstackSlave node = c.getNode();
+        if (c.isIdle() && !disabled && node != null) {
             final long idleMilliseconds = System.currentTimeMillis() - c.getIdleStartMilliseconds();
-            if (idleMilliseconds > TimeUnit2.MINUTES.toMillis(30)) {
-                LOGGER.info("Disconnecting "+c.getName());
-                c.getNode().terminate();
+            SlaveTemplate t = node.getTemplate();
+            if (t == null) {
+                // slave from an older version, or its template is gone
+                if (idleMilliseconds > DEFAULT_IDLE_TIME) {
+                    LOGGER.info("Disconnecting "+c.getName());
+                    node.terminate();
+                }
+            } else if (idleMilliseconds > getIdleTime(t) && isNearBillingBoundary(t, node)) {
+                // the check and the termination need to be atomic across the slaves of the template,
+                // or they could all see the others as idle and all go away
+                synchronized (t) {
+                    if (countIdle(t) > t.getMinIdle()) {
+                        LOGGER.info("Disconnecting "+c.getName());
+                        node.terminate();
+                    }
+                }
             }
         }
         return 1;
     }
 
+    /**
+     * How long slaves of the given template may stay idle.
+     *
+     * <p>
+     * The more often the template is asked for, the longer its slaves are kept, since a slave
+     * that goes away just before the next build costs a whole boot. The configured time is
+     * scaled by how many slaves we expect to be asked for while one boots, up to {@link #MAX_IDLE_SCALE}.
+     */
+    static long getIdleTime(SlaveTemplate t) {
+        WarmPool pool = t.getWarmPool();
+        double expected = pool.getArrivalRate() * pool.getBootTime() / TimeUnit2.MINUTES.toMillis(1);
+        double scale = Math.min(MAX_IDLE_SCALE, 1 + expected);
+        return (long) (t.getIdleTerminationTime() * scale);
+    }
+
+    /**
+     * Whether the instance of the given slave is about to start a new billing period, which is
+     * the only time it is worth terminating it: until then, it is paid for anyway.
+     */
+    static boolean isNearBillingBoundary(SlaveTemplate t, OpenstackSlave node) {
+        long period = t.getBillingPeriod();
+        if (period <= 0 || node.getLaunchedAt() == 0)
+            return true;
+        long intoPeriod = (System.currentTimeMillis() - node.getLaunchedAt()) % period;
+        return intoPeriod >= period - Math.min(BILLING_MARGIN, period);
+    }
+
+    /**
+     * Number of online, idle slaves of the given template.
+     */
+    private static int countIdle(SlaveTemplate t) {
+        int n = 0;
+        for (Computer c : Hudson.getInstance().getComputers()) {
+            if (c instanceof OpenstackComputer && c.isOnline() && c.isIdle()) {
+                OpenstackSlave node = ((OpenstackComputer) c).getNode();
+                if (node != null && node.getTemplate() == t)
+                    n++;
+            }
+        }
+        return n;
+    }
+
     /**
      * Try to connect to it ASAP.
      */
@@ -50,5 +107,21 @@ public class OpenstackRetentionStrategy extends RetentionStrategy<OpenstackCompu
 
     private static final Logger LOGGER = Logger.getLogger(OpenstackRetentionStrategy.class.getName());
 
+    /**
+     * Idle time of slaves whose template doesn't say otherwise.
+     */
+    public static final long DEFAULT_IDLE_TIME = TimeUnit2.MINUTES.toMillis(30);
+
+    /**
+     * How much the idle time of a template in demand may be stretched.
+     */
+    public static double MAX_IDLE_SCALE = Double.parseDouble(System.getProperty(OpenstackRetentionStrategy.class.getName()+".maxIdleScale", "4"));
+
+    /**
+     * How long before the end of a billing period idle slaves are terminated.
+     * This needs to be more than the one minute between two checks.
+     */
+    public static long BILLING_MARGIN = Long.getLong(OpenstackRetentionStrategy.class.getName()+".billingMargin", TimeUnit2.MINUTES.toMillis(3));
+
     public static boolean disabled = Boolean.getBoolean(OpenstackRetentionStrategy.class.getName()+".disabled");
 }
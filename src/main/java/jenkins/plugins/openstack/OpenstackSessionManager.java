@@ -0,0 +1,184 @@
+package jenkins.plugins.openstack;
+
+import hudson.util.TimeUnit2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.client.OpenstackCredentials;
+import org.openstack.client.OpenstackException;
+import org.openstack.client.common.OpenstackSession;
+import org.openstack.model.identity.Service;
+import org.openstack.model.identity.ServiceEndpoint;
+
+/**
+ * Hands out an authenticated {@link OpenstackSession} for an {@link OpenstackCloud}.
+ *
+ * <p>
+ * Reads don't take any lock. The Keystone token is renewed shortly before it expires,
+ * and only one thread authenticates at a time; the others keep using the current
+ * session while it is still valid, or wait for the new one.
+ *
+ * <p>
+ * The bindings always talk to the first endpoint of each service in the catalog. To get a session
+ * for a given region, the endpoints of that region are moved to the front of the catalog.
+ *
+ * @author Justin SB
+ */
+final class OpenstackSessionManager {
+    private final OpenstackCredentials credentials;
+
+    /**
+     * Region whose endpoints the sessions use, or null for whatever the catalog lists first.
+     */
+    private final String region;
+
+    private final ReentrantLock authLock = new ReentrantLock();
+
+    private volatile Authenticated current;
+
+    OpenstackSessionManager(OpenstackCredentials credentials) {
+        this(credentials, null);
+    }
+
+    OpenstackSessionManager(OpenstackCredentials credentials, String region) {
+        this.credentials = credentials;
+        this.region = region;
+    }
+
+    /**
+     * Gets a session whose token is valid.
+     */
+    public OpenstackSession get() throws OpenstackException {
+        Authenticated a = current;
+        long now = System.currentTimeMillis();
+        if (a != null && now < a.renewAt)
+            return a.session;
+
+        if (a != null && now < a.expiresAt) {
+            // still valid, so only renew if nobody else is already doing it
+            if (!authLock.tryLock())
+                return a.session;
+        } else {
+            authLock.lock();
+        }
+        try {
+            Authenticated latest = current;
+            if (latest != a && latest != null && System.currentTimeMillis() < latest.expiresAt)
+                return latest.session; // someone else renewed while we were waiting
+            try {
+                return authenticate().session;
+            } catch (OpenstackException e) {
+                if (a == null || System.currentTimeMillis() >= a.expiresAt)
+                    throw e;
+                // only an early renewal; keep the current token until it actually expires,
+                // and don't go back to Keystone on every call in the meantime
+                LOGGER.log(Level.WARNING, "Failed to renew the OpenStack token; using the current one until it expires", e);
+                if (current == a)
+                    current = new Authenticated(a.session, Math.min(System.currentTimeMillis() + RENEWAL_RETRY, a.expiresAt), a.expiresAt);
+                return a.session;
+            }
+        } finally {
+            authLock.unlock();
+        }
+    }
+
+    /**
+     * Reports that OpenStack rejected the token of the given session, so that the next
+     * {@link #get()} authenticates again.
+     *
+     * <p>
+     * Only the first report about a given session has any effect, so when many threads
+     * hit the same expired token, we only authenticate once.
+     */
+    public void invalidate(OpenstackSession session) {
+        Authenticated a = current;
+        if (a != null && a.session == session) {
+            authLock.lock();
+            try {
+                if (current == a)
+                    current = null;
+            } finally {
+                authLock.unlock();
+            }
+        }
+    }
+
+    private Authenticated authenticate() throws OpenstackException {
+        OpenstackSession session = OpenstackSession.create();
+        session.authenticate(credentials);
+        if (region != null)
+            preferRegion(session, region);
+
+        long now = System.currentTimeMillis();
+        long expiresAt = now + DEFAULT_TOKEN_LIFETIME;
+        try {
+            Date expires = session.getAccess().getToken().getExpires();
+            if (expires != null)
+                expiresAt = expires.getTime();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not determine when the token expires; assuming the default lifetime", e);
+        }
+        long renewAt = Math.max(now, expiresAt - RENEWAL_MARGIN);
+
+        Authenticated a = new Authenticated(session, renewAt, expiresAt);
+        current = a;
+        return a;
+    }
+
+    /**
+     * Moves the endpoints of the given region ahead of the others, for each service of the catalog.
+     * Each service gets a sorted copy of its list, rather than having the list of the bindings sorted in place.
+     */
+    private static void preferRegion(OpenstackSession session, final String region) {
+        Comparator<ServiceEndpoint> inRegionFirst = new Comparator<ServiceEndpoint>() {
+            public int compare(ServiceEndpoint a, ServiceEndpoint b) {
+                return rank(a) - rank(b);
+            }
+
+            private int rank(ServiceEndpoint e) {
+                return region.equals(e.getRegion()) ? 0 : 1;
+            }
+        };
+        for (Service service : session.getAccess().getServiceCatalog()) {
+            List<ServiceEndpoint> endpoints = new ArrayList<ServiceEndpoint>(service.getEndpoints());
+            Collections.sort(endpoints, inRegionFirst);
+            service.setEndpoints(endpoints);
+        }
+    }
+
+    private static final class Authenticated {
+        final OpenstackSession session;
+        final long renewAt;
+        final long expiresAt;
+
+        Authenticated(OpenstackSession session, long renewAt, long expiresAt) {
+            this.session = session;
+            this.renewAt = renewAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * How long before the token expires we start renewing it.
+     */
+    public static long RENEWAL_MARGIN = Long.getLong(OpenstackSessionManager.class.getName() + ".renewalMargin", TimeUnit2.MINUTES.toMillis(10));
+
+    /**
+     * How long we wait before trying again after a renewal failed.
+     */
+    public static long RENEWAL_RETRY = Long.getLong(OpenstackSessionManager.class.getName() + ".renewalRetry", TimeUnit2.MINUTES.toMillis(1));
+
+    /**
+     * Token lifetime assumed when Keystone doesn't tell us; Keystone's default is a day.
+     */
+    private static final long DEFAULT_TOKEN_LIFETIME = TimeUnit2.HOURS.toMillis(24);
+
+    private static final Logger LOGGER = Logger.getLogger(OpenstackSessionManager.class.getName());
+}
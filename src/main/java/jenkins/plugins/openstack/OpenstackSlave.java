@@ -12,6 +12,7 @@ import hudson.util.ListBoxModel;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,6 +44,25 @@ public final class OpenstackSlave extends Slave {
     public final String rootCommandPrefix; // e.g. 'sudo'
     public final String jvmopts; //e.g. -Xmx1g
     public final boolean stopOnTerminate;
+    /**
+     * Comes from {@link SlaveTemplate#imageManifest}.
+     */
+    public final String imageManifest;
+    /**
+     * {@link SlaveTemplate#getDisplayName()} of the template this slave was made from,
+     * or null for slaves from older versions.
+     */
+    public final String templateName;
+    /**
+     * Name of the {@link Region} the instance was started in, or null for slaves from older versions.
+     */
+    public final String region;
+
+    /**
+     * When the instance of this slave was created, which is when it started being billed.
+     * 0 for slaves from older versions.
+     */
+    private long launchedAt;
 
     /**
      * For data read from old Hudson, this is 0, so we use that to indicate 22.
@@ -51,12 +71,12 @@ public final class OpenstackSlave extends Slave {
 
     public static final String TEST_ZONE = "testZone";
     
-    public OpenstackSlave(String cloudId, String instanceId, String description, String remoteFS, int sshPort, int numExecutors, String labelString, String initScript, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate) throws FormException, IOException {
-        this(cloudId, instanceId, description, remoteFS, sshPort, numExecutors, Mode.NORMAL, labelString, initScript, Collections.<NodeProperty<?>>emptyList(), remoteAdmin, rootCommandPrefix, jvmopts, stopOnTerminate);
+    public OpenstackSlave(String cloudId, String instanceId, String description, String remoteFS, int sshPort, int numExecutors, String labelString, String initScript, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate, String imageManifest, String templateName, String region) throws FormException, IOException {
+        this(cloudId, instanceId, description, remoteFS, sshPort, numExecutors, Mode.NORMAL, labelString, initScript, Collections.<NodeProperty<?>>emptyList(), remoteAdmin, rootCommandPrefix, jvmopts, stopOnTerminate, imageManifest, templateName, region);
     }
 
     @DataBoundConstructor
-    public OpenstackSlave(String cloudId, String instanceId, String description, String remoteFS, int sshPort, int numExecutors, Mode mode, String labelString, String initScript, List<? extends NodeProperty<?>> nodeProperties, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate) throws FormException, IOException {
+    public OpenstackSlave(String cloudId, String instanceId, String description, String remoteFS, int sshPort, int numExecutors, Mode mode, String labelString, String initScript, List<? extends NodeProperty<?>> nodeProperties, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate, String imageManifest, String templateName, String region) throws FormException, IOException {
         super(instanceId, description, remoteFS, numExecutors, mode, labelString, new OpenstackUnixLauncher(), new OpenstackRetentionStrategy(), nodeProperties);
         this.cloudId = cloudId;
         this.initScript  = initScript;
@@ -65,21 +85,32 @@ public final class OpenstackSlave extends Slave {
         this.jvmopts = jvmopts;
         this.sshPort = sshPort;
         this.stopOnTerminate = stopOnTerminate;
+        this.imageManifest = Util.fixEmptyAndTrim(imageManifest);
+        this.templateName = templateName;
+        this.region = region;
+        this.launchedAt = System.currentTimeMillis();
     }
 
     /**
      * Constructor for debugging.
      */
     public OpenstackSlave(String cloudId, String instanceId) throws FormException, IOException {
-        this(cloudId, instanceId,"debug", "/tmp/hudson", 22, 1, Mode.NORMAL, "debug", "", Collections.<NodeProperty<?>>emptyList(), null, null, null, false);
+        this(cloudId, instanceId,"debug", "/tmp/hudson", 22, 1, Mode.NORMAL, "debug", "", Collections.<NodeProperty<?>>emptyList(), null, null, null, false, null, null, null);
     }
 
+    /**
+     * Number of executors of a slave of the given flavor: one per vCPU, unless
+     * {@link #RAM_PER_EXECUTOR} or {@link #DISK_PER_EXECUTOR} say there is room for fewer.
+     */
     /*package*/ static int toNumExecutors(Flavor flavor) {
         int executors = flavor.getVcpus();
-        
-        // TODO: Modify based on RAM?
-        
-        return executors;
+
+        if (RAM_PER_EXECUTOR > 0 && flavor.getRam() != null)
+            executors = Math.min(executors, flavor.getRam() / RAM_PER_EXECUTOR);
+        if (DISK_PER_EXECUTOR > 0 && flavor.getDisk() != null)
+            executors = Math.min(executors, flavor.getDisk() / DISK_PER_EXECUTOR);
+
+        return Math.max(1, executors);
     }
 
     /**
@@ -89,35 +120,77 @@ public final class OpenstackSlave extends Slave {
         return getNodeName();
     }
 
+    /**
+     * Gets the template this slave was made from.
+     *
+     * <p>
+     * Templates in different regions can share a display name, so the region has to match too,
+     * unless the slave predates regions being recorded.
+     *
+     * @return null if the slave predates templates being recorded, or the template is gone.
+     */
+    public SlaveTemplate getTemplate() {
+        OpenstackCloud cloud = OpenstackCloud.get(cloudId);
+        if (cloud == null || templateName == null)
+            return null;
+        try {
+            for (SlaveTemplate t : cloud.getTemplates()) {
+                if (templateName.equals(t.getDisplayName())
+                        && (region == null || region.equals(t.getParentRegion().getName())))
+                    return t;
+            }
+        } catch (OpenstackException e) {
+            LOGGER.log(Level.WARNING, "Failed to find the region of the templates of " + cloud.getDisplayName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * The {@link Region} of the cloud that the instance of this slave runs in.
+     */
+    Region getRegion() {
+        return OpenstackCloud.get(cloudId).getRegion(region);
+    }
+
+    /**
+     * When this slave was created, or 0 if we don't know.
+     */
+    public long getLaunchedAt() {
+        return launchedAt;
+    }
+
+    /**
+     * Records when Nova created the instance, which can be long before this slave was,
+     * e.g. for standby instances or instances we attach to.
+     */
+    void setLaunchedAt(Date created) {
+        if (created != null)
+            launchedAt = created.getTime();
+    }
+
     @Override
     public Computer createComputer() {
         return new OpenstackComputer(this);
     }
 
     /**
-     * Terminates the OpenStack instance
+     * Terminates the OpenStack instance.
+     *
+     * <p>
+     * The node goes away right away, and the instance is deleted in the background
+     * by the {@link TerminationReaper} of the cloud.
      */
     public void terminate() {
         String instanceId = getInstanceId();
         try {
-            OpenstackComputeClient compute = OpenstackCloud.get(cloudId).connect().getComputeClient();
             // TODO: What's the difference between stop & terminate?
-            if (stopOnTerminate) {
-            	compute.root().servers().server(instanceId).delete();
-//            	StopInstancesRequest request = new StopInstancesRequest(Collections.singletonList(getInstanceId()));
-//            	ec2.stopInstances(request);
-                LOGGER.info("Terminated OpenStack instance (stopped): "+instanceId);
-            } else {
-            	compute.root().servers().server(instanceId).delete();
-//            	TerminateInstancesRequest request = new TerminateInstancesRequest(Collections.singletonList(getInstanceId()));
-//            	ec2.terminateInstances(request);
-                LOGGER.info("Terminated OpenStack instance (terminated): "+instanceId);
-            }
+            getRegion().getReaper().terminate(instanceId);
+            LOGGER.info("Queued OpenStack instance for termination: "+instanceId);
             Hudson.getInstance().removeNode(this);
-        } catch (OpenstackException e) {
-            LOGGER.log(Level.WARNING,"Failed to terminate OpenStack instance: "+instanceId,e);
         } catch (IOException e) {
             LOGGER.log(Level.WARNING,"Failed to terminate OpenStack instance: "+instanceId,e);
+        } catch (OpenstackException e) {
+            LOGGER.log(Level.WARNING,"Failed to terminate OpenStack instance: "+instanceId,e);
         }
     }
 
@@ -190,5 +263,15 @@ public final class OpenstackSlave extends Slave {
     	}
     }
 
+    /**
+     * Memory each executor needs, in MB, or 0 to size slaves on vCPUs alone.
+     */
+    public static int RAM_PER_EXECUTOR = Integer.getInteger(OpenstackSlave.class.getName() + ".ramPerExecutor", 0);
+
+    /**
+     * Disk space each executor needs, in GB, or 0 to size slaves on vCPUs alone.
+     */
+    public static int DISK_PER_EXECUTOR = Integer.getInteger(OpenstackSlave.class.getName() + ".diskPerExecutor", 0);
+
     private static final Logger LOGGER = Logger.getLogger(OpenstackSlave.class.getName());
 }
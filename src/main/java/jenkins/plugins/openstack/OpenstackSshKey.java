@@ -6,6 +6,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.openstack.client.OpenstackException;
 import org.openstack.client.common.OpenstackComputeClient;
@@ -23,16 +25,41 @@ public final class OpenstackSshKey {
     private final String publicKey;
     private final Secret privateKey;
 
+    /**
+     * Computed once up front, as parsing the private key is expensive.
+     * If that failed, {@link #fingerprintError} says why.
+     */
+    private final String fingerprint;
+    private final IOException fingerprintError;
+
+    /**
+     * The keypair in OpenStack that matches this key, by region, once we found or created it there.
+     * Keypairs belong to the Nova of one region, so each region has its own.
+     */
+    private final ConcurrentMap<String, KeyPair> resolved = new ConcurrentHashMap<String, KeyPair>();
+
     OpenstackSshKey(String publicKey, String privateKey) {
         this.publicKey = publicKey;
         this.privateKey = Secret.fromString(privateKey.trim());
+
+        String fingerprint = null;
+        IOException fingerprintError = null;
+        try {
+            fingerprint = OpenSshUtils.getFingerprint(this.privateKey.getPlainText());
+        } catch (IOException e) {
+            fingerprintError = e;
+        }
+        this.fingerprint = fingerprint;
+        this.fingerprintError = fingerprintError;
     }
 
     /**
      * Obtains the fingerprint of the key in the "ab:cd:ef:...:12" format.
      */
     public String getFingerprint() throws IOException {
-        return OpenSshUtils.getFingerprint(privateKey.getPlainText());
+        if (fingerprintError != null)
+            throw new IOException(fingerprintError.getMessage(), fingerprintError);
+        return fingerprint;
     }
 
     /**
@@ -100,7 +127,40 @@ public final class OpenstackSshKey {
         return privateKey.getPlainText();
     }
 
-    public org.openstack.model.compute.KeyPair getOrCreate(OpenstackComputeClient compute) throws IOException, OpenstackException {
+    /**
+     * Gets the keypair in OpenStack that matches this key, creating it if needed.
+     *
+     * <p>
+     * The result is remembered, so only the first call for each region goes to OpenStack.
+     * Use {@link #invalidate(String)} if the keypair turns out to be gone.
+     *
+     * @param region
+     *      name of the region that the compute client talks to.
+     */
+    public org.openstack.model.compute.KeyPair getOrCreate(String region, OpenstackComputeClient compute) throws IOException, OpenstackException {
+        KeyPair keyPair = resolved.get(region);
+        if (keyPair != null)
+            return keyPair;
+
+        synchronized (this) {
+            keyPair = resolved.get(region);
+            if (keyPair == null) {
+                keyPair = findOrCreate(compute);
+                if (keyPair != null)
+                    resolved.put(region, keyPair);
+            }
+            return keyPair;
+        }
+    }
+
+    /**
+     * Forgets the keypair found by {@link #getOrCreate(String, OpenstackComputeClient)} in the given region.
+     */
+    public void invalidate(String region) {
+        resolved.remove(region);
+    }
+
+    private org.openstack.model.compute.KeyPair findOrCreate(OpenstackComputeClient compute) throws IOException, OpenstackException {
         List<KeyPair> existingKeys = Lists.newArrayList(compute.root().keyPairs().list());
 
         org.openstack.model.compute.KeyPair keyPair = find(existingKeys);
@@ -0,0 +1,258 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.openstack.client.OpenstackException;
+import org.openstack.client.common.OpenstackSession;
+import org.openstack.model.compute.Flavor;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps track of how much of the tenant's Nova quota is left, so that we only ask for servers that fit.
+ *
+ * <p>
+ * The absolute limits of the tenant are fetched from Nova in the background, at most every {@link #TTL}.
+ * Until the first fetch is done, or if Nova can't be reached, creates are let through.
+ * Each create then takes a {@link Reservation} against them for its instance, cores and RAM.
+ * A successful create stays reserved until limits fetched after it show the usage, and a failed
+ * create gives its share back right away.
+ *
+ * <p>
+ * The bindings don't expose the limits, so they are read over plain HTTP from the compute
+ * endpoint in the service catalog.
+ *
+ * <p>
+ * Floating IPs aren't tracked: the slaves use the addresses Nova gives their servers, and
+ * never allocate one, so that quota can't turn a create down.
+ *
+ * @author Justin SB
+ */
+final class QuotaLedger {
+    private final Region region;
+
+    /**
+     * Last limits we fetched, or null if we never could.
+     */
+    private Limits limits;
+    private volatile long lastRefreshed;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /**
+     * Creates in flight, and creates that succeeded since the limits were fetched.
+     */
+    private final List<Reservation> reservations = Lists.newArrayList();
+
+    QuotaLedger(Region region) {
+        this.region = region;
+    }
+
+    /**
+     * Reserves the quota for one server of the given flavor.
+     *
+     * @param flavor
+     *      null if the flavor is unknown, in which case only the instance counts.
+     * @return null if the server doesn't fit in what is left of the quota.
+     *      If we can't tell what is left, the server is let through.
+     */
+    Reservation reserve(Flavor flavor) {
+        refreshIfStale();
+
+        Reservation r = new Reservation(flavor);
+        synchronized (this) {
+            if (limits != null) {
+                int instances = 1, cores = r.cores, ram = r.ram;
+                for (Reservation o : reservations) {
+                    instances++;
+                    cores += o.cores;
+                    ram += o.ram;
+                }
+                if (!Limits.fits(limits.maxInstances, limits.usedInstances, instances)
+                        || !Limits.fits(limits.maxCores, limits.usedCores, cores)
+                        || !Limits.fits(limits.maxRam, limits.usedRam, ram))
+                    return null;
+            }
+            reservations.add(r);
+        }
+        return r;
+    }
+
+    /**
+     * How much of the quota is left, from 0 to 1, for the scarcest of instances, cores and RAM.
+     * 1 if we can't tell. This only looks at the limits we already have.
+     */
+    double getFreeFraction() {
+        refreshIfStale();
+
+        synchronized (this) {
+            if (limits == null)
+                return 1;
+            int instances = 0, cores = 0, ram = 0;
+            for (Reservation o : reservations) {
+                instances++;
+                cores += o.cores;
+                ram += o.ram;
+            }
+            return Math.min(Limits.free(limits.maxInstances, limits.usedInstances, instances),
+                    Math.min(Limits.free(limits.maxCores, limits.usedCores, cores),
+                            Limits.free(limits.maxRam, limits.usedRam, ram)));
+        }
+    }
+
+    /**
+     * Starts fetching the limits again in the background if they are stale.
+     * Callers go on with what we already have, so a slow Nova never holds up provisioning.
+     */
+    private void refreshIfStale() {
+        if (System.currentTimeMillis() - lastRefreshed < TTL || !refreshing.compareAndSet(false, true))
+            return;
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private void refresh() {
+        long started = System.currentTimeMillis();
+        try {
+            Limits l = fetch();
+            synchronized (this) {
+                limits = l;
+                // servers created before we asked are now in the usage
+                for (Iterator<Reservation> itr = reservations.iterator(); itr.hasNext();) {
+                    long createdAt = itr.next().createdAt;
+                    if (createdAt != 0 && createdAt <= started)
+                        itr.remove();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to fetch the Nova limits of " + region.getDisplayName(), e);
+        } catch (OpenstackException e) {
+            LOGGER.log(Level.WARNING, "Failed to fetch the Nova limits of " + region.getDisplayName(), e);
+        }
+        // don't retry a failing fetch on every create either
+        lastRefreshed = started;
+    }
+
+    private Limits fetch() throws IOException, OpenstackException {
+        OpenstackSession session = region.connect();
+        HttpURLConnection con = Region.openCompute(session, "/limits", TIMEOUT);
+        if (con.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            // the token was revoked or expired early; authenticate again and retry once
+            con.disconnect();
+            region.invalidateSession(session);
+            con = Region.openCompute(region.connect(), "/limits", TIMEOUT);
+        }
+        try {
+            if (con.getResponseCode() / 100 != 2)
+                throw new IOException("GET limits failed: " + con.getResponseCode() + " " + con.getResponseMessage());
+            InputStream in = con.getInputStream();
+            try {
+                return new Limits(JSONObject.fromObject(IOUtils.toString(in, "UTF-8"))
+                        .getJSONObject("limits").getJSONObject("absolute"));
+            } finally {
+                in.close();
+            }
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Quota taken by one create.
+     */
+    final class Reservation {
+        final int cores;
+        final int ram;
+
+        /**
+         * When the server was created, or 0 while the create is in flight.
+         */
+        private long createdAt;
+
+        private boolean released;
+
+        private Reservation(Flavor flavor) {
+            this.cores = flavor != null ? flavor.getVcpus() : 0;
+            this.ram = flavor != null && flavor.getRam() != null ? flavor.getRam() : 0;
+        }
+
+        /**
+         * Reports how the create went. Only the first call counts, so that a finally block
+         * can give back whatever a create that was cancelled or interrupted still holds.
+         *
+         * @param created
+         *      true if the server was created, in which case it keeps its share until Nova counts it.
+         */
+        void release(boolean created) {
+            synchronized (QuotaLedger.this) {
+                if (released)
+                    return;
+                released = true;
+                if (created)
+                    createdAt = System.currentTimeMillis();
+                else
+                    reservations.remove(this);
+            }
+        }
+    }
+
+    /**
+     * The part of the absolute limits of Nova that our servers use; -1 means unlimited.
+     */
+    private static final class Limits {
+        final int maxInstances, usedInstances;
+        final int maxCores, usedCores;
+        final int maxRam, usedRam;
+
+        Limits(JSONObject absolute) {
+            maxInstances = absolute.optInt("maxTotalInstances", -1);
+            usedInstances = absolute.optInt("totalInstancesUsed", 0);
+            maxCores = absolute.optInt("maxTotalCores", -1);
+            usedCores = absolute.optInt("totalCoresUsed", 0);
+            maxRam = absolute.optInt("maxTotalRAMSize", -1);
+            usedRam = absolute.optInt("totalRAMUsed", 0);
+        }
+
+        static boolean fits(int max, int used, int wanted) {
+            return max < 0 || used + wanted <= max;
+        }
+
+        static double free(int max, int used, int reserved) {
+            if (max <= 0)
+                return max < 0 ? 1 : 0;
+            return Math.max(0, max - used - reserved) / (double) max;
+        }
+    }
+
+    /**
+     * How long the limits fetched from Nova are trusted.
+     */
+    public static long TTL = Long.getLong(QuotaLedger.class.getName() + ".ttl", TimeUnit2.MINUTES.toMillis(1));
+
+    /**
+     * Connect and read timeout of the limits request, in milliseconds.
+     */
+    public static int TIMEOUT = Integer.getInteger(QuotaLedger.class.getName() + ".timeout", (int) TimeUnit2.SECONDS.toMillis(30));
+
+    private static final Logger LOGGER = Logger.getLogger(QuotaLedger.class.getName());
+}
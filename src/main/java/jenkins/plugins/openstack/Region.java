@@ -0,0 +1,134 @@
+package jenkins.plugins.openstack;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.openstack.client.OpenstackCredentials;
+import org.openstack.client.OpenstackException;
+import org.openstack.client.common.OpenstackSession;
+import org.openstack.model.identity.Service;
+import org.openstack.model.identity.ServiceEndpoint;
+
+/**
+ * One region of an {@link OpenstackCloud}.
+ *
+ * <p>
+ * All the regions of a cloud share its credentials, but each has its own sessions, and keeps
+ * track of its own servers, deletions, quota and flavors, since Nova knows nothing of the other regions.
+ *
+ * @author Justin SB
+ */
+final class Region {
+    private final OpenstackCloud cloud;
+
+    /**
+     * Name of the region in the service catalog, or empty for the endpoints the catalog lists first.
+     */
+    private final String name;
+
+    private final OpenstackSessionManager sessions;
+    private final InstanceInventory inventory;
+    private final InstanceReadinessWatcher readinessWatcher;
+    private final TerminationReaper reaper;
+    private final QuotaLedger quotaLedger;
+    private final FlavorCatalog flavorCatalog;
+
+    Region(OpenstackCloud cloud, String name, OpenstackCredentials credentials) {
+        this.cloud = cloud;
+        this.name = name;
+        this.sessions = new OpenstackSessionManager(credentials, name.length() > 0 ? name : null);
+        this.inventory = new InstanceInventory(this);
+        this.readinessWatcher = new InstanceReadinessWatcher(this, inventory);
+        this.reaper = new TerminationReaper(this, inventory);
+        this.quotaLedger = new QuotaLedger(this);
+        this.flavorCatalog = new FlavorCatalog(this);
+    }
+
+    OpenstackCloud getCloud() {
+        return cloud;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDisplayName() {
+        return name.length() > 0 ? cloud.getDisplayName() + " (" + name + ")" : cloud.getDisplayName();
+    }
+
+    /**
+     * Gets a session that talks to the endpoints of this region.
+     */
+    public OpenstackSession connect() throws OpenstackException {
+        return sessions.get();
+    }
+
+    /**
+     * Reports that OpenStack rejected the token of a session obtained from {@link #connect()},
+     * so that the next call to {@link #connect()} authenticates again.
+     */
+    public void invalidateSession(OpenstackSession session) {
+        sessions.invalidate(session);
+    }
+
+    /**
+     * Our view of the servers running in this region.
+     */
+    InstanceInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Waits for the instances of this region to become active.
+     */
+    InstanceReadinessWatcher getReadinessWatcher() {
+        return readinessWatcher;
+    }
+
+    /**
+     * Deletes the instances of this region in the background.
+     */
+    TerminationReaper getReaper() {
+        return reaper;
+    }
+
+    /**
+     * What is left of the Nova quota of this region.
+     */
+    QuotaLedger getQuotaLedger() {
+        return quotaLedger;
+    }
+
+    /**
+     * The flavors of this region.
+     */
+    FlavorCatalog getFlavorCatalog() {
+        return flavorCatalog;
+    }
+
+    /**
+     * Opens a request to the given path of the compute endpoint of the session, for what the
+     * bindings don't expose, e.g. "/limits".
+     */
+    static HttpURLConnection openCompute(OpenstackSession session, String path, int timeout) throws IOException {
+        for (Service service : session.getAccess().getServiceCatalog()) {
+            if (!"compute".equals(service.getType()))
+                continue;
+            for (ServiceEndpoint endpoint : service.getEndpoints()) {
+                String url = endpoint.getPublicURL();
+                if (url == null)
+                    continue;
+                if (url.endsWith("/"))
+                    url = url.substring(0, url.length() - 1);
+                HttpURLConnection con = (HttpURLConnection) new URL(url + path).openConnection();
+                con.setRequestProperty("X-Auth-Token", session.getAccess().getToken().getId());
+                con.setRequestProperty("Accept", "application/json");
+                con.setConnectTimeout(timeout);
+                con.setReadTimeout(timeout);
+                return con;
+            }
+        }
+        throw new IOException("No compute endpoint in the service catalog");
+    }
+}
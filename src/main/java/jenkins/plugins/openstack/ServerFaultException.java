@@ -0,0 +1,31 @@
+package jenkins.plugins.openstack;
+
+import hudson.AbortException;
+
+/**
+ * Thrown when Nova puts a server into the ERROR state, with the fault it recorded for it.
+ *
+ * @author Justin SB
+ */
+final class ServerFaultException extends AbortException {
+    /**
+     * Message of the fault, e.g. "No valid host was found. There are not enough hosts available.",
+     * or empty if Nova didn't tell.
+     */
+    private final String fault;
+
+    ServerFaultException(String instanceId, String fault) {
+        super("The instance " + instanceId + " failed to start (ERROR state" + (fault.length() > 0 ? ": " + fault : "") + "). Aborting launch.");
+        this.fault = fault;
+    }
+
+    /**
+     * Whether the scheduler found no host with room for the server, i.e. the cloud is out of capacity
+     * for it rather than anything being wrong with the server.
+     */
+    boolean isNoValidHost() {
+        return fault.startsWith("No valid host");
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -10,13 +10,24 @@ import hudson.model.Hudson;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
+import hudson.slaves.Cloud;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.TimeUnit2;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 
@@ -54,13 +65,40 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     public final String rootCommandPrefix;
     public final String jvmopts;
     public final boolean stopOnTerminate;
+    /**
+     * Path of the manifest file on pre-baked images, or null if the image is not pre-baked.
+     */
+    public final String imageManifest;
+    /**
+     * Minimum number of standby instances to keep booted, or empty for none.
+     */
+    public final String warmPoolSize;
+    /**
+     * How long, in minutes, a slave stays idle before it is terminated, or empty for the default.
+     */
+    public final String idleTerminationMinutes;
+    /**
+     * Number of idle slaves that are never terminated, or empty for none.
+     */
+    public final String minIdle;
+    /**
+     * Length of the billing period of the instances, in minutes, or empty if they aren't billed by period.
+     */
+    public final String billingPeriodMinutes;
+    /**
+     * Region of the service catalog to start the instances in, or empty for the endpoints it lists first.
+     */
+    public final String region;
     protected transient OpenstackCloud parent;
+
+    private transient WarmPool warmPool;
+    private transient TemplateHealth health;
     
 
     private transient /*almost final*/ Set<LabelAtom> labelSet;
 
     @DataBoundConstructor
-    public SlaveTemplate(String imageId, String zone, String remoteFS, String sshPort, String flavorId, String labelString, String description, String initScript, String userData, String numExecutors, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate) {
+    public SlaveTemplate(String imageId, String zone, String remoteFS, String sshPort, String flavorId, String labelString, String description, String initScript, String userData, String numExecutors, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate, String imageManifest, String warmPoolSize, String idleTerminationMinutes, String minIdle, String billingPeriodMinutes, String region) {
         this.imageId = imageId;
         this.zone = zone;
         this.remoteFS = remoteFS;
@@ -75,6 +113,12 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         this.rootCommandPrefix = rootCommandPrefix;
         this.jvmopts = jvmopts;
         this.stopOnTerminate = stopOnTerminate;
+        this.imageManifest = Util.fixEmptyAndTrim(imageManifest);
+        this.warmPoolSize = Util.fixNull(warmPoolSize).trim();
+        this.idleTerminationMinutes = Util.fixNull(idleTerminationMinutes).trim();
+        this.minIdle = Util.fixNull(minIdle).trim();
+        this.billingPeriodMinutes = Util.fixNull(billingPeriodMinutes).trim();
+        this.region = Util.fixNull(region).trim();
         readResolve(); // initialize
     }
     
@@ -94,20 +138,96 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return zone;
     }
 
+    /**
+     * Region the instances of this template are started in; empty for the endpoints the catalog lists first.
+     */
+    public String getRegion() {
+        return Util.fixNull(region);
+    }
+
+    /**
+     * The {@link Region} of the cloud that this template starts its instances in.
+     */
+    Region getParentRegion() {
+        return getParent().getRegion(getRegion());
+    }
+
     public int getNumExecutors() {
         try {
             return Integer.parseInt(numExecutors);
         } catch (NumberFormatException e) {
-            return OpenstackSlave.toNumExecutors(getFlavor());
+            Flavor flavor = getFlavor();
+            return flavor != null ? OpenstackSlave.toNumExecutors(flavor) : 1;
         }
     }
 
-    private Flavor getFlavor() {
-    	OpenstackComputeClient compute = getParent().connect().getComputeClient();
-    	Flavor flavor = compute.root().flavors().flavor(flavorId).show();
-    	return flavor;
+    /**
+     * Gets the flavor of this template from the catalog of its region.
+     *
+     * @return null if the cloud has no such flavor.
+     */
+    Flavor getFlavor() {
+    	return getParentRegion().getFlavorCatalog().get(flavorId);
 	}
 
+    /**
+     * Minimum number of standby instances to keep in the {@link WarmPool}; 0 disables it.
+     */
+    public int getWarmPoolSize() {
+        try {
+            return Math.max(0, Integer.parseInt(warmPoolSize));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * How long a slave may stay idle before it is terminated, before any scaling for demand.
+     */
+    public long getIdleTerminationTime() {
+        try {
+            return TimeUnit2.MINUTES.toMillis(Math.max(1, Integer.parseInt(idleTerminationMinutes)));
+        } catch (NumberFormatException e) {
+            return OpenstackRetentionStrategy.DEFAULT_IDLE_TIME;
+        }
+    }
+
+    /**
+     * Number of idle slaves of this template that are kept around regardless of their idle time.
+     */
+    public int getMinIdle() {
+        try {
+            return Math.max(0, Integer.parseInt(minIdle));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Length of the billing period of the instances, or 0 if they aren't billed by period.
+     */
+    public long getBillingPeriod() {
+        try {
+            return TimeUnit2.MINUTES.toMillis(Math.max(0, Integer.parseInt(billingPeriodMinutes)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Standby instances of this template.
+     */
+    WarmPool getWarmPool() {
+        return warmPool;
+    }
+
+    /**
+     * How provisioning from this template has been going lately.
+     */
+    TemplateHealth getHealth() {
+        return health;
+    }
+
 	public int getSshPort() {
         try {
             return Integer.parseInt(sshPort);
@@ -123,7 +243,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return rootCommandPrefix;
     }
     
-    public Set getLabelSet(){
+    public Set<LabelAtom> getLabelSet(){
     	return labelSet;
     }
     
@@ -143,58 +263,136 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      * @return always non-null. This needs to be then added to {@link Hudson#addNode(Node)}.
      */
     public OpenstackSlave provision(TaskListener listener) throws OpenstackException, IOException {
-        PrintStream logger = listener.getLogger();
-        String cloudId = getParent().getCloudId();
-        OpenstackComputeClient compute = getParent().connect().getComputeClient();
+        OpenstackComputeClient compute = getParentRegion().connect().getComputeClient();
+        return create(compute, buildRequest(compute, SLAVE_NAME), listener);
+    }
 
-        try {
-            logger.println("Launching "+imageId);
+    /**
+     * Provisions several new OpenStack slaves at once.
+     *
+     * <p>
+     * The per-template setup (capabilities and keypair) is done once for the whole batch,
+     * and the create calls are then fanned out over a bounded pool, at most
+     * {@link #CREATE_PARALLELISM} at a time.
+     *
+     * @return one future per requested slave. Each slave needs to be then added to {@link Hudson#addNode(Node)}.
+     */
+    public List<Future<OpenstackSlave>> provision(int count, TaskListener listener) {
+        return provision(count, SLAVE_NAME, listener);
+    }
 
-            ServerForCreate request = new ServerForCreate();
-            if (StringUtils.isNotBlank(getZone())) {
-                request.setZone(getZone());
+    /**
+     * Starts standby instances for the {@link WarmPool}.
+     *
+     * <p>
+     * They are named after the pool, so that they can be told apart from the slaves.
+     */
+    List<Future<OpenstackSlave>> provisionStandby(int count, TaskListener listener) {
+        return provision(count, warmPool.getStandbyName(), listener);
+    }
+
+    private List<Future<OpenstackSlave>> provision(int count, final String name, final TaskListener listener) {
+        final Future<ServerForCreate> request = CREATE_POOL.submit(new Callable<ServerForCreate>() {
+            public ServerForCreate call() throws Exception {
+                return buildRequest(getParentRegion().connect().getComputeClient(), name);
             }
-            request.setImageRef(imageId);
-            
-            // TODO: Accept name, or (better) use a dropdown
-            request.setFlavorRef(flavorId);
+        });
 
-            request.setName("Jenkins slave");
-            
-            // RunInstancesRequest request = new RunInstancesRequest(imageId, 1, 1);
-            // if (StringUtils.isNotBlank(getZone())) {
-            // Placement placement = new Placement(getZone());
-            // request.setPlacement(placement);
-            // }
-            // request.setUserData(userData);
-            // request.setKeyName(keyPair.getKeyName());
-            // request.setInstanceType(type.toString());
-            // Instance inst = compute.runInstances(request).getReservation().getInstances().get(0);
-            
-            CloudCapabilities capabalities = compute.getSession().getCapabilities();
-            if (capabalities.supportsSshKeys()) {
-                OpenstackSshKey sshKeyPair = parent.getSshKeyPair();
-                KeyPair keyPair = sshKeyPair.getOrCreate(compute);
-                if (keyPair == null) {
-                    // Unexpected ... getOrCreate should create it!
-                    throw new OpenstackException(
-                            "No matching keypair found on OpenStack. Is the OpenStack private key a valid one?");
+        final InstanceInventory inventory = getParentRegion().getInventory();
+        List<Future<OpenstackSlave>> r = new ArrayList<Future<OpenstackSlave>>();
+        for (int i = 0; i < count; i++) {
+            // counts against the cap right away, not only once Nova answers
+            inventory.creating();
+            // the pool is FIFO, so the request is already being built by the time these run
+            r.add(CREATE_POOL.submit(new Callable<OpenstackSlave>() {
+                public OpenstackSlave call() throws Exception {
+                    try {
+                        OpenstackComputeClient compute = getParentRegion().connect().getComputeClient();
+                        return create(compute, request.get(), listener);
+                    } finally {
+                        inventory.createDone();
+                    }
                 }
-                
-                request.setKeyName(keyPair.getName());
-            }
-            else {
-                // TODO: Verify that file injection is supported
-                OpenstackSshKey sshKeyPair = parent.getSshKeyPair();
-                
-                String fileContents = sshKeyPair.getPublicKey();
-                request.addUploadFile("/root/.ssh/authorized_keys", Utf8.getBytes(fileContents));
-            }
-            if (StringUtils.isNotBlank(userData)) {
-            	throw new IllegalArgumentException("userData not supported");
+            }));
+        }
+        return r;
+    }
+
+    /**
+     * Builds the request to create a server from this template.
+     *
+     * <p>
+     * The request doesn't depend on the individual server, so it can be reused
+     * for any number of creates.
+     */
+    private ServerForCreate buildRequest(OpenstackComputeClient compute, String name) throws OpenstackException, IOException {
+        ServerForCreate request = new ServerForCreate();
+        if (StringUtils.isNotBlank(getZone())) {
+            request.setZone(getZone());
+        }
+        request.setImageRef(imageId);
+        
+        // TODO: Accept name, or (better) use a dropdown
+        request.setFlavorRef(flavorId);
+
+        request.setName(name);
+        
+        // RunInstancesRequest request = new RunInstancesRequest(imageId, 1, 1);
+        // if (StringUtils.isNotBlank(getZone())) {
+        // Placement placement = new Placement(getZone());
+        // request.setPlacement(placement);
+        // }
+        // request.setUserData(userData);
+        // request.setKeyName(keyPair.getKeyName());
+        // request.setInstanceType(type.toString());
+        // Instance inst = compute.runInstances(request).getReservation().getInstances().get(0);
+        
+        CloudCapabilities capabalities = compute.getSession().getCapabilities();
+        if (capabalities.supportsSshKeys()) {
+            OpenstackSshKey sshKeyPair = parent.getSshKeyPair();
+            KeyPair keyPair = sshKeyPair.getOrCreate(getParentRegion().getName(), compute);
+            if (keyPair == null) {
+                // Unexpected ... getOrCreate should create it!
+                throw new OpenstackException(
+                        "No matching keypair found on OpenStack. Is the OpenStack private key a valid one?");
             }
             
-            Server created = compute.root().servers().create(request);
+            request.setKeyName(keyPair.getName());
+        }
+        else {
+            // TODO: Verify that file injection is supported
+            OpenstackSshKey sshKeyPair = parent.getSshKeyPair();
+            
+            String fileContents = sshKeyPair.getPublicKey();
+            request.addUploadFile("/root/.ssh/authorized_keys", Utf8.getBytes(fileContents));
+        }
+        if (StringUtils.isNotBlank(userData)) {
+        	throw new IllegalArgumentException("userData not supported");
+        }
+        return request;
+    }
+
+    private OpenstackSlave create(OpenstackComputeClient compute, ServerForCreate request, TaskListener listener) throws OpenstackException, IOException {
+        PrintStream logger = listener.getLogger();
+        String cloudId = getParent().getCloudId();
+
+        try {
+            logger.println("Launching "+imageId);
+
+            // TODO: Nova can create several servers in one call (min_count/max_count), but
+            // ServerForCreate doesn't expose it and create() only hands back a single server
+            Server created;
+            try {
+                created = compute.root().servers().create(request);
+            } catch (OpenstackException e) {
+                if (request.getKeyName() == null || !OpenstackFaults.isInvalidKeyName(e))
+                    throw e;
+                // the keypair was deleted behind our back; look it up or create it again, and retry once
+                logger.println("Keypair " + request.getKeyName() + " is gone, retrying with a new one");
+                getParent().getSshKeyPair().invalidate(getParentRegion().getName());
+                created = compute.root().servers().create(buildRequest(compute, request.getName()));
+            }
+            getParentRegion().getInventory().created(created);
             return newSlave(cloudId, created);
         } catch (FormException e) {
             throw new AssertionError(); // we should have discovered all configuration issues upfront
@@ -202,7 +400,10 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
     private OpenstackSlave newSlave(String cloudId, Server inst) throws FormException, IOException {
-        return new OpenstackSlave(cloudId, inst.getId(), description, remoteFS, getSshPort(), getNumExecutors(), labels, initScript, remoteAdmin, rootCommandPrefix, jvmopts, stopOnTerminate);
+        OpenstackSlave slave = new OpenstackSlave(cloudId, inst.getId(), description, remoteFS, getSshPort(), getNumExecutors(), labels, initScript, remoteAdmin, rootCommandPrefix, jvmopts, stopOnTerminate, imageManifest, getDisplayName(), getParentRegion().getName());
+        // billing starts when Nova created the server; a create response may not say, but then that's now anyway
+        slave.setLaunchedAt(inst.getCreated());
+        return slave;
     }
 
     /**
@@ -212,7 +413,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     public OpenstackSlave attach(String instanceId, TaskListener listener) throws OpenstackException, IOException {
         PrintStream logger = listener.getLogger();
         String cloudId = getParent().getCloudId();
-        OpenstackComputeClient ec2 = getParent().connect().getComputeClient();
+        OpenstackComputeClient ec2 = getParentRegion().connect().getComputeClient();
 
         try {
             logger.println("Attaching to "+instanceId);
@@ -228,6 +429,8 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      */
     protected Object readResolve() {
         labelSet = Label.parse(labels);
+        warmPool = new WarmPool(this);
+        health = new TemplateHealth();
         return this;
     }
 
@@ -235,6 +438,21 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return Hudson.getInstance().getDescriptor(getClass());
     }
 
+    private static final String SLAVE_NAME = "Jenkins slave";
+
+    /**
+     * Maximum number of create calls in flight at the same time, across all templates.
+     */
+    public static int CREATE_PARALLELISM = Integer.getInteger(SlaveTemplate.class.getName() + ".createParallelism", 8);
+
+    private static final ExecutorService CREATE_POOL;
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(CREATE_PARALLELISM, CREATE_PARALLELISM, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        CREATE_POOL = pool;
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<SlaveTemplate> {
         @Override
@@ -295,6 +513,69 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 return FormValidation.ok();   // can't test
         }
         
+        /**
+         * Check that the flavor exists, and show how many executors it gets by default.
+         */
+        public FormValidation doValidateFlavorId(
+                @QueryParameter String authUrl,
+                @QueryParameter String accessId,
+                @QueryParameter String tenant,
+                @QueryParameter String secretKey,
+                @QueryParameter String region,
+                @QueryParameter String flavorId) throws IOException, ServletException {
+            try {
+                Flavor flavor = null;
+                OpenstackCloud cloud = findCloud(authUrl, accessId, tenant);
+                if (cloud != null) {
+                    flavor = cloud.getRegion(region).getFlavorCatalog().get(flavorId);
+                } else {
+                    OpenstackComputeClient compute = OpenstackCloud.connect(new URL(authUrl), accessId, tenant, secretKey).getComputeClient();
+                    try {
+                        flavor = compute.root().flavors().flavor(flavorId).show();
+                    } catch (OpenstackNotFoundException e) {
+                        flavor = null;
+                    }
+                }
+                if (flavor == null)
+                    return FormValidation.error("No such instance type: " + flavorId);
+                return FormValidation.ok(flavor.getName() + ": " + flavor.getVcpus() + " vCPUs, " + flavor.getRam() + "MB RAM, "
+                        + flavor.getDisk() + "GB disk, " + OpenstackSlave.toNumExecutors(flavor) + " executor(s) by default");
+            } catch (OpenstackException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        /**
+         * Finds the saved cloud with the given credentials, so that we can use what it already knows.
+         */
+        private OpenstackCloud findCloud(String authUrl, String accessId, String tenant) {
+            for (Cloud c : Hudson.getInstance().clouds) {
+                if (c instanceof OpenstackCloud) {
+                    OpenstackCloud cloud = (OpenstackCloud) c;
+                    if (cloud.getAuthUrl() != null && cloud.getAuthUrl().toString().equals(authUrl)
+                            && StringUtils.equals(cloud.getAccessId(), accessId) && StringUtils.equals(cloud.getTenant(), Util.fixEmptyAndTrim(tenant)))
+                        return cloud;
+                }
+            }
+            return null;
+        }
+
+        public ListBoxModel doFillRegionItems(
+                @QueryParameter String authUrl,
+                @QueryParameter String accessId,
+                @QueryParameter String tenant,
+                @QueryParameter String secretKey) throws IOException,
+                ServletException {
+            ListBoxModel model = new ListBoxModel();
+            model.add("<default>", "");
+            if (!StringUtils.isEmpty(authUrl) && !StringUtils.isEmpty(accessId) && !StringUtils.isEmpty(secretKey)) {
+                for (String region : OpenstackCloud.listRegions(new URL(authUrl), accessId, tenant, secretKey)) {
+                    model.add(region, region);
+                }
+            }
+            return model;
+        }
+
         public ListBoxModel doFillZoneItems(
                 @QueryParameter String authUrl,
                 @QueryParameter String accessId,
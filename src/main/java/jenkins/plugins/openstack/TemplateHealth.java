@@ -0,0 +1,81 @@
+package jenkins.plugins.openstack;
+
+import hudson.util.TimeUnit2;
+
+/**
+ * How well provisioning from a {@link SlaveTemplate} has been going lately.
+ *
+ * <p>
+ * This tracks the smoothed success rate and boot time of the template's slaves, and backs the
+ * template off for a while after the cloud says it is out of quota or capacity for it.
+ * {@link TemplateSelector} uses it to pick between templates that match the same label.
+ *
+ * @author Justin SB
+ */
+final class TemplateHealth {
+    /**
+     * Smoothed fraction of provisioning attempts that gave an online slave.
+     */
+    private double successRate = 1;
+
+    /**
+     * Smoothed time from create to online, in milliseconds.
+     */
+    private double bootTime = TimeUnit2.MINUTES.toMillis(2);
+
+    /**
+     * Until when the template is out of capacity; 0 if it isn't.
+     */
+    private long backoffUntil;
+    private long backoff;
+
+    synchronized void recordSuccess(long bootMillis) {
+        successRate = SMOOTHING + (1 - SMOOTHING) * successRate;
+        bootTime = SMOOTHING * bootMillis + (1 - SMOOTHING) * bootTime;
+        backoff = 0;
+        backoffUntil = 0;
+    }
+
+    synchronized void recordFailure(Throwable cause) {
+        successRate = (1 - SMOOTHING) * successRate;
+        if (isCapacityError(cause)) {
+            backoff = backoff == 0 ? MIN_BACKOFF : Math.min(MAX_BACKOFF, backoff * 2);
+            backoffUntil = System.currentTimeMillis() + backoff;
+        }
+    }
+
+    /**
+     * Whether the template recently ran out of quota or capacity.
+     */
+    synchronized boolean isBackingOff() {
+        return backoffUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * How much of a burst this template should get, relative to the other candidates.
+     * Templates that succeed more often and boot faster get more; backed off templates get none.
+     */
+    synchronized double getWeight() {
+        if (isBackingOff())
+            return 0;
+        // a floor on the success rate, so a template that had a bad run still gets tried now and then
+        double minutes = bootTime / TimeUnit2.MINUTES.toMillis(1);
+        return Math.max(MIN_SUCCESS_RATE, successRate) / (1 + minutes);
+    }
+
+    /**
+     * Whether the failure says the cloud is out of quota for the template, as opposed to something
+     * being wrong with the request, in which case another template may well work.
+     * This goes by the HTTP status of the fault, not by what its message happens to contain,
+     * or by the fault Nova recorded for a server it couldn't place.
+     */
+    static boolean isCapacityError(Throwable t) {
+        return OpenstackFaults.isOverQuota(t) || OpenstackFaults.isNoValidHost(t);
+    }
+
+    private static final double SMOOTHING = 0.2;
+    private static final double MIN_SUCCESS_RATE = 0.05;
+
+    public static long MIN_BACKOFF = Long.getLong(TemplateHealth.class.getName() + ".minBackoff", TimeUnit2.MINUTES.toMillis(1));
+    public static long MAX_BACKOFF = Long.getLong(TemplateHealth.class.getName() + ".maxBackoff", TimeUnit2.MINUTES.toMillis(15));
+}
@@ -0,0 +1,100 @@
+package jenkins.plugins.openstack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks between the {@link SlaveTemplate}s that match a label, based on their {@link TemplateHealth}
+ * and on how much quota is left in their {@link Region}.
+ *
+ * @author Justin SB
+ */
+final class TemplateSelector {
+    private TemplateSelector() {}
+
+    /**
+     * Sorts the candidates from the most to the least desirable.
+     * Equally good templates stay in configuration order.
+     */
+    static List<SlaveTemplate> rank(List<SlaveTemplate> candidates) {
+        return rank(candidates, weigh(candidates));
+    }
+
+    /**
+     * Splits a burst of slaves between the candidates, in proportion to their weight.
+     *
+     * @return how many slaves to create from each template, most desirable first; templates that get none are left out.
+     */
+    static Map<SlaveTemplate, Integer> allocate(List<SlaveTemplate> candidates, int count) {
+        return allocate(candidates, weigh(candidates), count);
+    }
+
+    /**
+     * Same as {@link #rank(List)}, with the weights already known.
+     */
+    static <T> List<T> rank(List<T> candidates, final Map<T, Double> weights) {
+        List<T> r = new ArrayList<T>(candidates);
+        Collections.sort(r, new Comparator<T>() {
+            public int compare(T a, T b) {
+                return Double.compare(weights.get(b), weights.get(a));
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Same as {@link #allocate(List, int)}, with the weights already known.
+     */
+    static <T> Map<T, Integer> allocate(List<T> candidates, Map<T, Double> weights, int count) {
+        double total = 0;
+        for (double w : weights.values())
+            total += w;
+
+        List<T> ranked = rank(candidates, weights);
+        Map<T, Integer> r = new LinkedHashMap<T, Integer>();
+        if (total <= 0) {
+            // everything is backed off; keep trying the first one rather than giving up
+            r.put(ranked.get(0), count);
+            return r;
+        }
+
+        // largest remainder, so that the shares add up to the count
+        int assigned = 0;
+        final Map<T, Double> remainders = new LinkedHashMap<T, Double>();
+        for (T t : ranked) {
+            double share = count * weights.get(t) / total;
+            int n = (int) Math.floor(share);
+            r.put(t, n);
+            remainders.put(t, share - n);
+            assigned += n;
+        }
+        List<T> byRemainder = new ArrayList<T>(ranked);
+        Collections.sort(byRemainder, new Comparator<T>() {
+            public int compare(T a, T b) {
+                return Double.compare(remainders.get(b), remainders.get(a));
+            }
+        });
+        for (int i = 0; assigned < count; i++, assigned++) {
+            T t = byRemainder.get(i % byRemainder.size());
+            r.put(t, r.get(t) + 1);
+        }
+
+        for (T t : ranked) {
+            if (r.get(t) == 0)
+                r.remove(t);
+        }
+        return r;
+    }
+
+    private static Map<SlaveTemplate, Double> weigh(List<SlaveTemplate> candidates) {
+        Map<SlaveTemplate, Double> weights = new LinkedHashMap<SlaveTemplate, Double>();
+        for (SlaveTemplate t : candidates)
+            // latency comes into the health, and free capacity from the quota left in the region of the template
+            weights.put(t, t.getHealth().getWeight() * t.getParentRegion().getQuotaLedger().getFreeFraction());
+        return weights;
+    }
+}
@@ -0,0 +1,300 @@
+package jenkins.plugins.openstack;
+
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.TimeUnit2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.client.InstanceState;
+import org.openstack.client.OpenstackException;
+import org.openstack.client.OpenstackNotFoundException;
+import org.openstack.model.compute.Server;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Deletes the instances of one {@link Region} of an {@link OpenstackCloud} in the background.
+ *
+ * <p>
+ * Instances are queued by {@link #terminate(String)}, which returns right away, and deleted in
+ * batches of at most {@link #BATCH_SIZE}, several at a time. A delete that fails is tried again
+ * on the next sweep. Once deleted, an instance is watched until a server listing confirms that
+ * it is gone, and deleted again if it is still around after {@link #CONFIRM_TIMEOUT}.
+ *
+ * <p>
+ * The instances that are queued or not yet confirmed gone are written to disk, since their
+ * nodes are already removed, and deleted again after a restart.
+ *
+ * @author Justin SB
+ */
+final class TerminationReaper {
+    private final Region region;
+    private final InstanceInventory inventory;
+
+    /**
+     * Instances to delete, with the number of failed attempts so far.
+     */
+    private final ConcurrentMap<String, Integer> queued = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Instances we asked OpenStack to delete, with when, until a listing confirms it.
+     */
+    private final ConcurrentMap<String, Long> deleting = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * True while a sweep is scheduled. We only sweep while there is something to do.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Where the pending deletions are kept, or null if there is no Jenkins to keep them in.
+     */
+    private final XmlFile pendingFile;
+
+    TerminationReaper(Region region, InstanceInventory inventory) {
+        this.region = region;
+        this.inventory = inventory;
+        this.pendingFile = getPendingFile(region);
+
+        // deletions we didn't get to finish before a restart
+        synchronized (PENDING) {
+            for (String instanceId : getPending(pendingFile))
+                queued.putIfAbsent(instanceId, 0);
+        }
+        if (!queued.isEmpty())
+            schedule(INTERVAL);
+    }
+
+    /**
+     * Queues the given instance for deletion.
+     */
+    public void terminate(String instanceId) {
+        setPending(instanceId, true);
+        queued.putIfAbsent(instanceId, 0);
+        // wait a little, so that a burst of slaves going idle is deleted in one batch
+        schedule(BATCH_DELAY);
+    }
+
+    /**
+     * Number of instances that are queued or being deleted.
+     */
+    public int getPendingCount() {
+        return queued.size() + deleting.size();
+    }
+
+    private void schedule(long delay) {
+        if (scheduled.compareAndSet(false, true))
+            SCHEDULER.schedule(new Runnable() {
+                public void run() {
+                    // the scheduler only keeps time; a sweep waits on HTTP calls
+                    Computer.threadPoolForRemoting.submit(new Sweep());
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private final class Sweep implements Runnable {
+        public void run() {
+            try {
+                deleteQueued();
+                confirmDeleted();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to terminate instances", e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Interrupted while terminating instances", e);
+            } finally {
+                scheduled.set(false);
+                if (getPendingCount() > 0)
+                    schedule(INTERVAL);
+            }
+        }
+    }
+
+    private void deleteQueued() throws InterruptedException {
+        List<String> batch = Lists.newArrayList();
+        List<Future<?>> deletes = Lists.newArrayList();
+        for (final String instanceId : queued.keySet()) {
+            if (batch.size() >= BATCH_SIZE)
+                break;
+            batch.add(instanceId);
+            deletes.add(DELETERS.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    region.connect().getComputeClient().root().servers().server(instanceId).delete();
+                    return null;
+                }
+            }));
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            String instanceId = batch.get(i);
+            try {
+                deletes.get(i).get();
+                LOGGER.info("Terminated OpenStack instance: " + instanceId);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof OpenstackNotFoundException)) {
+                    int attempts = queued.get(instanceId) + 1;
+                    if (attempts < MAX_ATTEMPTS) {
+                        LOGGER.log(Level.INFO, "Failed to terminate OpenStack instance " + instanceId + ", will try again", e.getCause());
+                        queued.put(instanceId, attempts);
+                    } else {
+                        LOGGER.log(Level.SEVERE, "Giving up on terminating OpenStack instance " + instanceId + "; it needs to be deleted by hand", e.getCause());
+                        queued.remove(instanceId);
+                        setPending(instanceId, false);
+                    }
+                    continue;
+                }
+                // already gone
+            }
+            queued.remove(instanceId);
+            deleting.put(instanceId, System.currentTimeMillis());
+            inventory.deleted(instanceId);
+        }
+    }
+
+    private void confirmDeleted() throws OpenstackException {
+        if (deleting.isEmpty())
+            return;
+
+        // a listing someone else just did is good enough
+        inventory.refreshIfOlderThan(INTERVAL / 2);
+        long listed = inventory.getLastRefreshed();
+
+        for (Map.Entry<String, Long> e : deleting.entrySet()) {
+            String instanceId = e.getKey();
+            long deletedAt = e.getValue();
+            if (listed <= deletedAt)
+                continue; // the listing may predate the delete
+
+            Server server = inventory.getCachedServer(instanceId);
+            if (server == null || InstanceState.get(server).isTerminated()) {
+                deleting.remove(instanceId);
+                setPending(instanceId, false);
+            } else if (System.currentTimeMillis() - deletedAt > CONFIRM_TIMEOUT) {
+                LOGGER.info("OpenStack instance " + instanceId + " is still there, deleting it again");
+                deleting.remove(instanceId);
+                queued.putIfAbsent(instanceId, 0);
+            }
+        }
+    }
+
+    private void setPending(String instanceId, boolean pending) {
+        if (pendingFile == null)
+            return;
+        synchronized (PENDING) {
+            Set<String> ids = getPending(pendingFile);
+            if (!(pending ? ids.add(instanceId) : ids.remove(instanceId)))
+                return;
+            try {
+                pendingFile.write(new ArrayList<String>(ids));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the pending deletions to " + pendingFile, e);
+            }
+        }
+    }
+
+    private static XmlFile getPendingFile(Region region) {
+        Hudson h = Hudson.getInstance();
+        if (h == null)
+            return null;
+        String name = Util.rawEncode(region.getCloud().name);
+        if (region.getName().length() > 0)
+            name += "-" + Util.rawEncode(region.getName());
+        return new XmlFile(Hudson.XSTREAM, new File(new File(h.getRootDir(), "openstack-deletions"), name + ".xml"));
+    }
+
+    /**
+     * Gets the pending deletions kept in the given file, reading it the first time.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> getPending(XmlFile file) {
+        if (file == null)
+            return new LinkedHashSet<String>();
+        synchronized (PENDING) {
+            Set<String> ids = PENDING.get(file.getFile());
+            if (ids == null) {
+                ids = new LinkedHashSet<String>();
+                if (file.exists()) {
+                    try {
+                        ids.addAll((List<String>) file.read());
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to read the pending deletions from " + file, e);
+                    }
+                }
+                PENDING.put(file.getFile(), ids);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Pending deletions by file. When a cloud is reconfigured, the reapers of the old and the new
+     * cloud share the file of a region, so they go through the same set.
+     */
+    private static final Map<File, Set<String>> PENDING = new HashMap<File, Set<String>>();
+
+    /**
+     * Maximum number of instances deleted in one sweep.
+     */
+    public static int BATCH_SIZE = Integer.getInteger(TerminationReaper.class.getName() + ".batchSize", 50);
+
+    /**
+     * Maximum number of delete calls in flight at the same time, across all clouds.
+     */
+    public static int DELETE_PARALLELISM = Integer.getInteger(TerminationReaper.class.getName() + ".deleteParallelism", 8);
+
+    /**
+     * Number of times a delete is tried before we give up on an instance.
+     */
+    public static int MAX_ATTEMPTS = Integer.getInteger(TerminationReaper.class.getName() + ".maxAttempts", 10);
+
+    /**
+     * How long we wait after the first termination request for more to batch up.
+     */
+    public static long BATCH_DELAY = Long.getLong(TerminationReaper.class.getName() + ".batchDelay", 1000);
+
+    /**
+     * How often failed deletes are retried and deleted instances are checked.
+     */
+    public static long INTERVAL = Long.getLong(TerminationReaper.class.getName() + ".interval", TimeUnit2.SECONDS.toMillis(15));
+
+    /**
+     * How long a deleted instance may still show up in listings before we delete it again.
+     */
+    public static long CONFIRM_TIMEOUT = Long.getLong(TerminationReaper.class.getName() + ".confirmTimeout", TimeUnit2.MINUTES.toMillis(5));
+
+    private static final ExecutorService DELETERS;
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(DELETE_PARALLELISM, DELETE_PARALLELISM, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        DELETERS = pool;
+    }
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    private static final Logger LOGGER = Logger.getLogger(TerminationReaper.class.getName());
+}
@@ -0,0 +1,381 @@
+package jenkins.plugins.openstack;
+
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.util.StreamTaskListener;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.plugins.openstack.ssh.SshConnectStrategy;
+
+import org.openstack.client.InstanceState;
+import org.openstack.client.OpenstackException;
+import org.openstack.model.compute.Flavor;
+import org.openstack.model.compute.Server;
+
+/**
+ * Standby instances of a {@link SlaveTemplate} that are already booted and reachable over SSH,
+ * so that a queued build doesn't have to wait for a boot.
+ * Standby instances are not bootstrapped: the init script, Java and slave.jar are set up when
+ * a standby is handed to a slave, as for a new instance.
+ *
+ * <p>
+ * {@link OpenstackCloud#provision} takes instances from here before creating new ones, and
+ * {@link WarmPoolMaintainer} refills the pool in the background. The pool keeps at least
+ * {@link SlaveTemplate#getWarmPoolSize()} instances, and grows up to {@link #MAX_SIZE} when
+ * the demand for the template times the boot time says we would need more.
+ *
+ * <p>
+ * Standby instances are recognized by their name, so they are adopted again after a restart.
+ * The name carries a mark of this Jenkins and cloud (see {@link #getStandbyPrefix(OpenstackCloud)}),
+ * so that the standbys of another cloud or another Jenkins on the same tenant are left alone.
+ *
+ * @author Justin SB
+ */
+final class WarmPool {
+    private final SlaveTemplate template;
+
+    /**
+     * Instances that are ready to be handed out.
+     */
+    private final Queue<String> ready = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * Instances that are still booting, with when we created them (or 0 if we adopted them).
+     */
+    private final ConcurrentMap<String, Long> booting = new ConcurrentHashMap<String, Long>();
+
+    private final ConcurrentMap<String, Future<Server>> activeFutures = new ConcurrentHashMap<String, Future<Server>>();
+
+    /**
+     * Number of nodes asked for since the last {@link #maintain()}.
+     */
+    private final AtomicInteger demand = new AtomicInteger();
+
+    /**
+     * Smoothed demand, in nodes per minute.
+     */
+    private volatile double arrivalRate;
+
+    /**
+     * Smoothed time from create to ready, in milliseconds.
+     */
+    private volatile double bootTime = TimeUnit2.MINUTES.toMillis(2);
+
+    private volatile long lastMaintained = System.currentTimeMillis();
+    private volatile boolean adopted;
+
+    WarmPool(SlaveTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * Name given to the standby instances of this template.
+     */
+    String getStandbyName() {
+        return getStandbyPrefix(template.getParent()) + template.getDisplayName();
+    }
+
+    /**
+     * Start of the name of all the standby instances of the given cloud, e.g. "Jenkins standby [1a2b3c4d] ".
+     * The mark is derived from the secret key of this Jenkins and the name of the cloud.
+     */
+    static String getStandbyPrefix(OpenstackCloud cloud) {
+        String mark = Util.getDigestOf(Hudson.getInstance().getSecretKey() + ":" + cloud.name).substring(0, 8);
+        return "Jenkins standby [" + mark + "] ";
+    }
+
+    /**
+     * Records that the queue asked for that many nodes of this template.
+     */
+    void recordDemand(int n) {
+        demand.addAndGet(n);
+    }
+
+    /**
+     * Number of standby instances ready to be handed out.
+     */
+    int getReadyCount() {
+        return ready.size();
+    }
+
+    /**
+     * Takes a ready standby instance out of the pool.
+     *
+     * <p>
+     * This is called from {@link OpenstackCloud#provision}, so it doesn't check anything;
+     * {@link #maintain()} checks the ready instances again on each run.
+     *
+     * @return the instance ID, or null if the pool is empty.
+     */
+    String take() {
+        return ready.poll();
+    }
+
+    /**
+     * Deletes the ready instances that are no longer active or reachable over SSH.
+     */
+    private void checkReady() {
+        for (Iterator<String> itr = ready.iterator(); itr.hasNext();) {
+            String id = itr.next();
+            if (isStillReady(id))
+                continue;
+            // may have been taken meanwhile, in which case it's not ours to delete
+            if (ready.remove(id)) {
+                LOGGER.info("Standby instance " + id + " is no longer usable; deleting it");
+                template.getParentRegion().getReaper().terminate(id);
+            }
+        }
+    }
+
+    private boolean isStillReady(String id) {
+        try {
+            Server server = template.getParentRegion().getInventory().getServer(id);
+            if (server == null || !InstanceState.get(server).isActive())
+                return false;
+            String host = OpenstackComputer.getPublicHost(server);
+            if (host == null)
+                return false;
+            SSH.probe(host, template.getSshPort());
+            return true;
+        } catch (OpenstackException e) {
+            LOGGER.log(Level.WARNING, "Failed to check standby instance " + id, e);
+            return false;
+        } catch (IOException e) {
+            return false; // SSH no longer answers
+        }
+    }
+
+    /**
+     * Smoothed number of nodes of this template asked for per minute.
+     */
+    double getArrivalRate() {
+        return arrivalRate;
+    }
+
+    /**
+     * Smoothed time it takes for an instance of this template to boot, in milliseconds.
+     */
+    double getBootTime() {
+        return bootTime;
+    }
+
+    /**
+     * Number of instances we want to keep in the pool right now.
+     */
+    int getTargetSize() {
+        int min = template.getWarmPoolSize();
+        if (min <= 0)
+            return 0;
+        int adaptive = (int) Math.ceil(arrivalRate * bootTime / TimeUnit2.MINUTES.toMillis(1));
+        return Math.max(min, Math.min(MAX_SIZE, adaptive));
+    }
+
+    /**
+     * Moves booted instances to the ready list, updates the demand estimate, and creates or
+     * deletes instances to get to the target size.
+     */
+    synchronized void maintain() {
+        updateArrivalRate();
+
+        OpenstackCloud cloud = template.getParent();
+        try {
+            if (!adopted) {
+                adopt(cloud);
+                adopted = true;
+            }
+
+            checkBooting(cloud);
+            checkReady();
+
+            int target = getTargetSize();
+            int have = ready.size() + booting.size();
+            if (have < target) {
+                int room = cloud.instanceCap - cloud.countCurrentEC2Slaves();
+                int count = Math.min(target - have, room);
+                // standbys count against the quota just like slaves
+                List<QuotaLedger.Reservation> reservations = new ArrayList<QuotaLedger.Reservation>();
+                Flavor flavor = template.getFlavor();
+                QuotaLedger.Reservation reservation;
+                while (reservations.size() < count && (reservation = template.getParentRegion().getQuotaLedger().reserve(flavor)) != null)
+                    reservations.add(reservation);
+                count = reservations.size();
+                if (count > 0) {
+                    LOGGER.info("Starting " + count + " standby instance(s) of " + template.getDisplayName());
+                    try {
+                        List<Future<OpenstackSlave>> creates = template.provisionStandby(count, new StreamTaskListener(System.out));
+                        for (int i = 0; i < creates.size(); i++) {
+                            try {
+                                String id = creates.get(i).get().getInstanceId();
+                                reservations.get(i).release(true);
+                                booting.put(id, System.currentTimeMillis());
+                            } catch (ExecutionException e) {
+                                reservations.get(i).release(false);
+                                LOGGER.log(Level.WARNING, "Failed to start a standby instance of " + template.getDisplayName(), e.getCause());
+                            }
+                        }
+                    } finally {
+                        // give back what we didn't get to, e.g. when interrupted
+                        for (QuotaLedger.Reservation r : reservations)
+                            r.release(false);
+                    }
+                }
+            } else {
+                // shrink, but only by handing back instances that are ready
+                while (ready.size() + booting.size() > target) {
+                    String id = ready.poll();
+                    if (id == null)
+                        break;
+                    LOGGER.info("Deleting surplus standby instance " + id);
+                    template.getParentRegion().getReaper().terminate(id);
+                }
+            }
+        } catch (OpenstackException e) {
+            LOGGER.log(Level.WARNING, "Failed to maintain the warm pool of " + template.getDisplayName(), e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while maintaining the warm pool of " + template.getDisplayName(), e);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to maintain the warm pool of " + template.getDisplayName(), e);
+        }
+    }
+
+    /**
+     * Deletes the standby instances of the cloud that no current template would have started,
+     * e.g. because their template was renamed or removed. Only instances with the mark of this
+     * cloud are looked at.
+     */
+    static void reapOrphans(OpenstackCloud cloud) {
+        String prefix = getStandbyPrefix(cloud);
+        Map<Region, Set<String>> names = new HashMap<Region, Set<String>>();
+        Collection<Region> regions;
+        try {
+            for (SlaveTemplate t : cloud.getTemplates()) {
+                Region region = t.getParentRegion();
+                Set<String> s = names.get(region);
+                if (s == null)
+                    names.put(region, s = new HashSet<String>());
+                s.add(t.getWarmPool().getStandbyName());
+            }
+            regions = cloud.getRegions();
+        } catch (OpenstackException e) {
+            LOGGER.log(Level.WARNING, "Failed to look for orphaned standby instances of " + cloud.getDisplayName(), e);
+            return;
+        }
+        for (Region region : regions) {
+            Set<String> known = names.get(region);
+            try {
+                for (Server server : region.getInventory().getServers()) {
+                    String name = server.getName();
+                    if (name == null || !name.startsWith(prefix) || (known != null && known.contains(name)))
+                        continue;
+                    if (Hudson.getInstance().getNode(server.getId()) != null)
+                        continue;
+                    if (InstanceState.get(server).isTerminated() || InstanceState.get(server).isTerminating())
+                        continue;
+                    LOGGER.info("Deleting standby instance " + server.getId() + " that no template uses any more");
+                    region.getReaper().terminate(server.getId());
+                }
+            } catch (OpenstackException e) {
+                LOGGER.log(Level.WARNING, "Failed to look for orphaned standby instances in " + region.getDisplayName(), e);
+            }
+        }
+    }
+
+    private void updateArrivalRate() {
+        long now = System.currentTimeMillis();
+        double minutes = Math.max(1, now - lastMaintained) / (double) TimeUnit2.MINUTES.toMillis(1);
+        lastMaintained = now;
+        double observed = demand.getAndSet(0) / minutes;
+        arrivalRate = SMOOTHING * observed + (1 - SMOOTHING) * arrivalRate;
+    }
+
+    /**
+     * Picks up standby instances of this template left over from an earlier run.
+     */
+    private void adopt(OpenstackCloud cloud) throws OpenstackException {
+        String name = getStandbyName();
+        for (Server server : template.getParentRegion().getInventory().getServers()) {
+            String id = server.getId();
+            if (name.equals(server.getName()) && Hudson.getInstance().getNode(id) == null
+                    && !ready.contains(id) && !booting.containsKey(id)) {
+                LOGGER.info("Adopting standby instance " + id);
+                booting.put(id, 0L);
+            }
+        }
+    }
+
+    private void checkBooting(OpenstackCloud cloud) {
+        for (Iterator<Map.Entry<String, Long>> itr = booting.entrySet().iterator(); itr.hasNext();) {
+            Map.Entry<String, Long> e = itr.next();
+            String id = e.getKey();
+
+            Future<Server> active = activeFutures.get(id);
+            if (active == null) {
+                active = template.getParentRegion().getReadinessWatcher().awaitActive(id);
+                activeFutures.put(id, active);
+            }
+            if (!active.isDone())
+                continue;
+
+            Server server;
+            try {
+                server = active.get();
+            } catch (Exception x) {
+                LOGGER.log(Level.WARNING, "Standby instance " + id + " failed to start", x);
+                template.getParentRegion().getReaper().terminate(id);
+                activeFutures.remove(id);
+                itr.remove();
+                continue;
+            }
+
+            String host = OpenstackComputer.getPublicHost(server);
+            if (host == null)
+                continue;
+            try {
+                SSH.probe(host, template.getSshPort());
+            } catch (IOException x) {
+                continue; // SSH not up yet
+            }
+
+            if (e.getValue() != 0) {
+                long took = System.currentTimeMillis() - e.getValue();
+                bootTime = SMOOTHING * took + (1 - SMOOTHING) * bootTime;
+            }
+            activeFutures.remove(id);
+            itr.remove();
+            ready.add(id);
+        }
+    }
+
+    /**
+     * Weight of the latest observation in the smoothed arrival rate and boot time.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * Upper bound on the adaptive pool size, per template.
+     */
+    public static int MAX_SIZE = Integer.getInteger(WarmPool.class.getName() + ".maxSize", 20);
+
+    private static final SshConnectStrategy SSH = SshConnectStrategy.getDefault();
+
+    private static final Logger LOGGER = Logger.getLogger(WarmPool.class.getName());
+}
@@ -0,0 +1,33 @@
+package jenkins.plugins.openstack;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.slaves.Cloud;
+import hudson.util.TimeUnit2;
+
+/**
+ * Once a minute, tops up the {@link WarmPool} of every {@link SlaveTemplate}, and deletes
+ * the standby instances that no template uses any more.
+ *
+ * @author Justin SB
+ */
+@Extension
+public class WarmPoolMaintainer extends PeriodicWork {
+    @Override
+	public long getRecurrencePeriod() {
+        return TimeUnit2.MINUTES.toMillis(1);
+    }
+
+    @Override
+	protected void doRun() {
+        for (Cloud c : Hudson.getInstance().clouds) {
+            if (c instanceof OpenstackCloud) {
+                for (SlaveTemplate t : ((OpenstackCloud) c).getTemplates()) {
+                    t.getWarmPool().maintain();
+                }
+                WarmPool.reapOrphans((OpenstackCloud) c);
+            }
+        }
+    }
+}
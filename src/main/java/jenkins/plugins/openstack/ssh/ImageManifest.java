@@ -0,0 +1,72 @@
+package jenkins.plugins.openstack.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import com.trilead.ssh2.Connection;
+
+/**
+ * What a pre-baked image says it already has, so that the launch can skip those stages.
+ *
+ * <p>
+ * The manifest is a properties file on the image, for example:
+ * <pre>
+ * java.version=1.6.0_26
+ * slave.jar.path=/opt/jenkins/slave.jar
+ * slave.jar.sha1=0123456789abcdef0123456789abcdef01234567
+ * </pre>
+ * It is read in the same exec that checks whether the init script already ran.
+ *
+ * @author Justin SB
+ */
+final class ImageManifest {
+    private final Properties properties;
+
+    private ImageManifest(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Reads the manifest at the given path on the instance.
+     * Missing keys just mean that the corresponding stage still has to run.
+     */
+    static ImageManifest read(Connection conn, String path) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // the echo in between keeps the init marker off the last line of a manifest that doesn't end with a newline
+        conn.exec("cat '" + path + "' 2>/dev/null; echo; test -e ~/.hudson-run-init && echo init.done=true", out);
+
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(out.toByteArray()));
+        return new ImageManifest(properties);
+    }
+
+    /**
+     * Whether the init script already ran on this instance.
+     */
+    boolean isInitDone() {
+        return Boolean.parseBoolean(properties.getProperty("init.done"));
+    }
+
+    /**
+     * Java version installed on the image, or null if the manifest doesn't say.
+     */
+    String getJavaVersion() {
+        return properties.getProperty("java.version");
+    }
+
+    /**
+     * Where slave.jar is on the image, or null if it isn't there.
+     */
+    String getSlaveJarPath() {
+        return properties.getProperty("slave.jar.path");
+    }
+
+    /**
+     * SHA-1 of the slave.jar on the image, in hex, or null if the manifest doesn't say.
+     */
+    String getSlaveJarSha1() {
+        return properties.getProperty("slave.jar.sha1");
+    }
+}
@@ -0,0 +1,337 @@
+package jenkins.plugins.openstack.ssh;
+
+import hudson.AbortException;
+import hudson.remoting.Channel;
+import hudson.model.Computer;
+import hudson.remoting.Channel.Listener;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.plugins.openstack.OpenstackCloud;
+import jenkins.plugins.openstack.OpenstackComputer;
+import jenkins.plugins.openstack.OpenstackSshKey;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+import com.trilead.ssh2.Session;
+
+/**
+ * The launch of one slave by {@link OpenstackUnixLauncher}, once its instance is active.
+ *
+ * <p>
+ * The launch goes through the {@link Stage}s in order. The short stages run on a small shared
+ * pool of workers, and waiting between two attempts (for SSH to come up, or for the key to be
+ * accepted) is done by scheduling the next attempt, so no thread is held while we wait.
+ * {@link Stage#PROVISION_RUNTIME} can take minutes (init script, Java download, slave.jar copy),
+ * so it runs on {@link Computer#threadPoolForRemoting} instead, where it can't hold up other launches.
+ * Each stage gets its own {@link SshConnectStrategy.Backoff}, so a slow stage doesn't use up the
+ * time of the next one.
+ *
+ * @author Justin SB
+ */
+final class LaunchPipeline {
+    enum Stage {
+        AWAIT_SSH,
+        BOOTSTRAP,
+        PROVISION_RUNTIME,
+        START_AGENT
+    }
+
+    private final OpenstackUnixLauncher launcher;
+    private final OpenstackComputer computer;
+    private final PrintStream logger;
+
+    private final SettableFuture<Object> done = SettableFuture.create();
+
+    private volatile Stage stage;
+    private SshConnectStrategy.Backoff backoff;
+
+    /**
+     * Only touched by the stage that is running, so stages never run concurrently.
+     */
+    private String host;
+    private int sshAttempts;
+    private Connection conn;
+    private String slaveJarPath;
+
+    LaunchPipeline(OpenstackUnixLauncher launcher, OpenstackComputer computer, PrintStream logger) {
+        this.launcher = launcher;
+        this.computer = computer;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts the launch.
+     *
+     * @return future that completes once the slave agent is connected, or fails with the
+     *      reason the launch failed. Cancelling it aborts the launch.
+     */
+    public ListenableFuture<Object> start() {
+        enter(Stage.AWAIT_SSH, new AwaitSsh());
+        return done;
+    }
+
+    /**
+     * Moves on to the given stage.
+     */
+    private void enter(Stage next, Step step) {
+        stage = next;
+        backoff = CONNECT_STRATEGY.start();
+        executorFor(next).execute(step);
+    }
+
+    private Executor executorFor(Stage s) {
+        return s == Stage.PROVISION_RUNTIME ? Computer.threadPoolForRemoting : WORKERS;
+    }
+
+    /**
+     * Runs the given step again after a delay, or fails the launch if we are out of time.
+     */
+    private void retry(final Step step, String failure) {
+        long delay = backoff.nextDelay();
+        if (delay < 0) {
+            fail(new AbortException(failure + " within " + backoff.getDeadlineString() + ". Aborting launch."));
+            return;
+        }
+        logger.println("Trying again in " + Math.max(1, delay / 1000) + " seconds.");
+        final Executor executor = executorFor(stage);
+        SCHEDULER.schedule(new Runnable() {
+            public void run() {
+                executor.execute(step);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void fail(Throwable t) {
+        if (conn != null) {
+            conn.close();
+            conn = null;
+        }
+        done.setException(t);
+    }
+
+    /**
+     * One unit of work of a stage.
+     */
+    private abstract class Step implements Runnable {
+        public final void run() {
+            if (done.isCancelled()) {
+                logger.println("Launch aborted during " + stage);
+                fail(new AbortException("Launch aborted"));
+                return;
+            }
+            try {
+                execute();
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        abstract void execute() throws Exception;
+    }
+
+    /**
+     * Waits for the SSH port to accept connections.
+     */
+    private final class AwaitSsh extends Step {
+        void execute() throws Exception {
+            try {
+                if (host == null || "0.0.0.0".equals(host)) {
+                    // the instance is active by now, so the description we already have normally has its address;
+                    // only worth asking OpenStack again if it doesn't
+                    host = OpenstackComputer.getPublicHost(sshAttempts == 0 ? computer.describeInstance() : computer.updateInstanceDescription());
+                }
+                sshAttempts++;
+                if (host == null) {
+                    logger.println("No address found, your host is most likely waiting for an ip address.");
+                    throw new IOException("goto sleep");
+                }
+                if ("0.0.0.0".equals(host)) {
+                    logger.println("Invalid host 0.0.0.0, your host is most likely waiting for an ip address.");
+                    throw new IOException("goto sleep");
+                }
+                int port = computer.getSshPort();
+                CONNECT_STRATEGY.probe(host, port);
+                logger.println("Connecting to " + host + " on port " + port + ". ");
+                Connection c = new Connection(host, port);
+                // currently OpenSolaris offers no way of verifying the host certificate, so just accept it blindly,
+                // hoping that no man-in-the-middle attack is going on.
+                c.connect(new ServerHostKeyVerifier() {
+                    public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
+                        return true;
+                    }
+                }, CONNECT_STRATEGY.connectTimeout, CONNECT_STRATEGY.connectTimeout);
+                conn = c;
+            } catch (IOException e) {
+                // keep retrying until SSH comes up
+                logger.println("Waiting for SSH to come up.");
+                retry(this, "SSH did not come up on " + host);
+                return;
+            }
+            logger.println("Connected via SSH.");
+            enter(Stage.BOOTSTRAP, new Bootstrap());
+        }
+    }
+
+    /**
+     * Authenticates with the key of the cloud, which may take a while to be installed on a fresh instance.
+     */
+    private final class Bootstrap extends Step {
+        void execute() throws Exception {
+            OpenstackSshKey sshKeyPair = OpenstackCloud.get(computer.getCloudId()).getSshKeyPair();
+            logger.println("Authenticating as " + computer.getRemoteAdmin());
+            if (!conn.authenticateWithPublicKey(computer.getRemoteAdmin(), sshKeyPair.getPrivateKey().toCharArray(), "")) {
+                logger.println("Authentication failed. Trying again...");
+                retry(this, "Authentication failed");
+                return;
+            }
+            enter(Stage.PROVISION_RUNTIME, new ProvisionRuntime());
+        }
+    }
+
+    /**
+     * Runs the init script, and makes sure Java and slave.jar are there.
+     *
+     * <p>
+     * On pre-baked images, whatever the {@link ImageManifest} says is already there is skipped.
+     */
+    private final class ProvisionRuntime extends Step {
+        void execute() throws Exception {
+            SCPClient scp = conn.createSCPClient();
+            String initScript = computer.getNode().initScript;
+            String manifestPath = computer.getNode().imageManifest;
+
+            ImageManifest manifest = null;
+            if (manifestPath != null) {
+                logger.println("Reading image manifest " + manifestPath);
+                manifest = ImageManifest.read(conn, manifestPath);
+            }
+
+            if(initScript!=null && initScript.trim().length()>0
+                    && (manifest != null ? !manifest.isInitDone() : conn.exec("test -e ~/.hudson-run-init", logger) !=0)) {
+                logger.println("Executing init script");
+                scp.put(initScript.getBytes("UTF-8"),"init.sh","/tmp","0700");
+                Session sess = conn.openSession();
+                sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
+                sess.execCommand(launcher.buildUpCommand(computer, "/tmp/init.sh"));
+
+                sess.getStdin().close();    // nothing to write here
+                sess.getStderr().close();   // we are not supposed to get anything from stderr
+                IOUtils.copy(sess.getStdout(),logger);
+
+                int exitStatus = OpenstackUnixLauncher.waitCompletion(sess);
+                if (exitStatus!=0) {
+                    throw new AbortException("init script failed: exit code="+exitStatus);
+                }
+
+                // Needs a tty to run sudo.
+                sess = conn.openSession();
+                sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
+                sess.execCommand(launcher.buildUpCommand(computer, "touch ~/.hudson-run-init"));
+            }
+
+            if (manifest != null && manifest.getJavaVersion() != null) {
+                logger.println("Image has java " + manifest.getJavaVersion());
+            } else {
+                installJava();
+            }
+
+            // TODO: on Windows with ec2-sshd, this scp command ends up just putting slave.jar as c:\tmp
+            // bug in ec2-sshd?
+
+            SlaveJar slaveJar = SlaveJar.get();
+            if (manifest != null && manifest.getSlaveJarPath() != null
+                    && slaveJar.getSha1().equalsIgnoreCase(manifest.getSlaveJarSha1())) {
+                logger.println("Image has an up-to-date slave.jar");
+                slaveJarPath = manifest.getSlaveJarPath();
+            } else {
+                slaveJar.install(conn, logger);
+                slaveJarPath = slaveJar.getRemotePath();
+            }
+
+            enter(Stage.START_AGENT, new StartAgent());
+        }
+
+        private void installJava() throws Exception {
+            // TODO: parse the version number. maven-enforcer-plugin might help
+            logger.println("Verifying that java exists");
+            if(conn.exec("java -fullversion", logger) !=0) {
+                logger.println("Installing Java");
+
+                String jdk = "java1.6.0_12";
+                String path = "/hudson-ci/jdk/linux-i586/" + jdk + ".tgz";
+
+                URL url = OpenstackCloud.get(computer.getCloudId()).buildPresignedURL(path);
+                if(conn.exec("wget -nv -O /tmp/" + jdk + ".tgz '" + url + "'", logger) !=0) {
+                    throw new AbortException("Failed to download Java");
+                }
+
+                if(conn.exec(launcher.buildUpCommand(computer, "tar xz -C /usr -f /tmp/" + jdk + ".tgz"), logger) !=0) {
+                    throw new AbortException("Failed to install Java");
+                }
+
+                if(conn.exec(launcher.buildUpCommand(computer, "ln -s /usr/" + jdk + "/bin/java /bin/java"), logger) !=0) {
+                    throw new AbortException("Failed to symlink Java");
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts slave.jar and hooks it up to the computer.
+     */
+    private final class StartAgent extends Step {
+        void execute() throws Exception {
+            final Connection c = conn;
+            String jvmopts = computer.getNode().jvmopts;
+            String launchString = "java " + (jvmopts != null ? jvmopts : "") + " -jar " + slaveJarPath;
+            logger.println("Launching slave agent: " + launchString);
+            final Session sess = c.openSession();
+            sess.execCommand(launchString);
+            computer.setChannel(sess.getStdout(),sess.getStdin(),logger,new Listener() {
+                @Override
+				public void onClosed(Channel channel, IOException cause) {
+                    sess.close();
+                    c.close();
+                }
+            });
+            conn = null; // the channel owns it now
+            done.set(null);
+        }
+    }
+
+    /**
+     * How we wait for SSH to come up.
+     */
+    private static final SshConnectStrategy CONNECT_STRATEGY = SshConnectStrategy.getDefault();
+
+    /**
+     * Maximum number of short launch stages running at the same time, across all launches.
+     */
+    public static int WORKER_COUNT = Integer.getInteger(LaunchPipeline.class.getName() + ".workers", 16);
+
+    private static final ExecutorService WORKERS;
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        WORKERS = pool;
+    }
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+}
@@ -0,0 +1,116 @@
+package jenkins.plugins.openstack.ssh;
+
+import hudson.model.Hudson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+
+/**
+ * The slave.jar of this Jenkins, as copied to the instances.
+ *
+ * <p>
+ * Its SHA-1 is computed once per Jenkins version, and it is kept on disk so that uploads
+ * stream from a file instead of reading the jar into memory each time. On the instance it
+ * is stored under a name that contains its digest, so an instance that already has the
+ * right jar (say, on a reconnect) doesn't get it again.
+ *
+ * @author Justin SB
+ */
+final class SlaveJar {
+    /**
+     * Jenkins version this was computed for.
+     */
+    private final String version;
+    private final String sha1;
+    private final File file;
+
+    private SlaveJar(String version, String sha1, File file) {
+        this.version = version;
+        this.sha1 = sha1;
+        this.file = file;
+    }
+
+    /**
+     * SHA-1 of the jar, in hex.
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    /**
+     * Where the jar goes on the instance.
+     */
+    public String getRemotePath() {
+        return REMOTE_DIR + "/" + getRemoteName();
+    }
+
+    private String getRemoteName() {
+        return "slave-" + sha1 + ".jar";
+    }
+
+    /**
+     * Makes sure the instance has this jar at {@link #getRemotePath()}, copying it only if needed.
+     */
+    public void install(Connection conn, PrintStream logger) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        conn.exec("sha1sum " + getRemotePath() + " 2>/dev/null", out);
+        String remote = out.toString().trim();
+        if (remote.startsWith(sha1)) {
+            logger.println("slave.jar is up to date");
+            return;
+        }
+
+        logger.println("Copying slave.jar");
+        SCPClient scp = conn.createSCPClient();
+        scp.put(file.getPath(), getRemoteName(), REMOTE_DIR, "0644");
+    }
+
+    private static volatile SlaveJar current;
+
+    /**
+     * Gets the slave.jar of the running Jenkins.
+     */
+    public static SlaveJar get() throws IOException {
+        SlaveJar jar = current;
+        if (jar != null && jar.version.equals(Hudson.VERSION) && jar.file.exists())
+            return jar;
+
+        synchronized (SlaveJar.class) {
+            jar = current;
+            if (jar != null && jar.version.equals(Hudson.VERSION) && jar.file.exists())
+                return jar;
+
+            byte[] data = Hudson.getInstance().getJnlpJars("slave.jar").readFully();
+            String sha1 = DigestUtils.shaHex(data);
+
+            File dir = new File(Hudson.getInstance().getRootDir(), "cache/openstack");
+            File file = new File(dir, "slave-" + sha1 + ".jar");
+            if (!file.exists()) {
+                dir.mkdirs();
+                File tmp = new File(dir, file.getName() + ".tmp");
+                OutputStream os = new FileOutputStream(tmp);
+                try {
+                    os.write(data);
+                } finally {
+                    os.close();
+                }
+                if (!tmp.renameTo(file) && !file.exists())
+                    throw new IOException("Failed to save " + file);
+            }
+
+            current = jar = new SlaveJar(Hudson.VERSION, sha1, file);
+            return jar;
+        }
+    }
+
+    private static final String REMOTE_DIR = "/tmp";
+}
@@ -0,0 +1,123 @@
+package jenkins.plugins.openstack.ssh;
+
+import hudson.Util;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * How {@link OpenstackUnixLauncher} waits for SSH to come up on a freshly booted instance.
+ *
+ * <p>
+ * Retries back off exponentially, with some jitter so that a burst of instances doesn't
+ * retry in lockstep, and give up once the total deadline has passed. Before each full SSH
+ * handshake, a plain TCP connect checks that something is listening on the port at all.
+ *
+ * <p>
+ * The defaults can be changed with system properties named after the fields.
+ *
+ * @author Justin SB
+ */
+public class SshConnectStrategy {
+    /**
+     * Delay before the first retry, in milliseconds.
+     */
+    public final long initialDelay;
+    /**
+     * Upper bound for the delay between two retries, in milliseconds.
+     */
+    public final long maxDelay;
+    /**
+     * By how much the delay grows after each retry.
+     */
+    public final double multiplier;
+    /**
+     * Total time we wait before failing the launch, in milliseconds.
+     */
+    public final long deadline;
+    /**
+     * Timeout of the TCP port probe and of the SSH connect, in milliseconds.
+     */
+    public final int connectTimeout;
+
+    public SshConnectStrategy(long initialDelay, long maxDelay, double multiplier, long deadline, int connectTimeout) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.deadline = deadline;
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Starts the clock on a new series of attempts.
+     */
+    public Backoff start() {
+        return new Backoff();
+    }
+
+    /**
+     * Checks that something accepts TCP connections on the given port, which is much
+     * cheaper than finding out through a failed SSH handshake.
+     *
+     * @throws IOException
+     *      if nothing is listening yet.
+     */
+    public void probe(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Keeps track of the delays of one series of attempts.
+     */
+    public final class Backoff {
+        private final long giveUpAt = System.currentTimeMillis() + deadline;
+        private long delay = initialDelay;
+
+        /**
+         * Computes how long to sleep before the next attempt.
+         *
+         * @return
+         *      the delay in milliseconds, or -1 if the deadline has passed and we should give up.
+         */
+        public long nextDelay() {
+            long remaining = giveUpAt - System.currentTimeMillis();
+            if (remaining <= 0)
+                return -1;
+
+            // "equal jitter": half of the delay is fixed, the other half random
+            long d = delay / 2 + (long) (RANDOM.nextDouble() * (delay - delay / 2));
+            delay = Math.min(maxDelay, (long) (delay * multiplier));
+            return Math.min(d, remaining);
+        }
+
+        /**
+         * Total time we are willing to wait, for error messages.
+         */
+        public String getDeadlineString() {
+            return Util.getTimeSpanString(deadline);
+        }
+    }
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * The strategy configured through system properties.
+     */
+    public static SshConnectStrategy getDefault() {
+        String p = SshConnectStrategy.class.getName();
+        return new SshConnectStrategy(
+                Long.getLong(p + ".initialDelay", TimeUnit2.SECONDS.toMillis(2)),
+                Long.getLong(p + ".maxDelay", TimeUnit2.SECONDS.toMillis(30)),
+                Double.parseDouble(System.getProperty(p + ".multiplier", "2")),
+                Long.getLong(p + ".deadline", TimeUnit2.MINUTES.toMillis(15)),
+                Integer.getInteger(p + ".connectTimeout", (int) TimeUnit2.SECONDS.toMillis(10)));
+    }
+}
@@ -0,0 +1,87 @@
+package jenkins.plugins.openstack.storage;
+
+import hudson.FilePath;
+import hudson.util.io.ArchiverFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Uploads the files matching a pattern as a single tar.gz that Swift extracts back into
+ * individual objects (the "extract-archive" bulk operation), so that publishing many small
+ * files costs one request instead of one per file.
+ *
+ * <p>
+ * The archive is written on the fly where the files are, and streamed through this JVM into
+ * the request, even with direct upload: a TempURL can only PUT one object, not extract an archive,
+ * so this needs the token, which never leaves this JVM.
+ * The objects keep their path relative to the base directory.
+ *
+ * @author Justin SB
+ */
+final class BundleUpload {
+    private BundleUpload() {}
+
+    /**
+     * Uploads the files matching the pattern in the given directory as one archive, through this JVM.
+     *
+     * @return the number of bytes uploaded.
+     */
+    static long upload(SwiftEndpoint endpoint, String container, String prefix, FilePath dir, String includes) throws IOException, InterruptedException {
+        HttpURLConnection con = open(endpoint, container, prefix);
+        try {
+            CountingOutputStream out = new CountingOutputStream(con.getOutputStream());
+            try {
+                dir.archive(ArchiverFactory.TARGZ, out, includes);
+            } finally {
+                out.close();
+            }
+
+            checkResponse(con, container);
+            return out.getByteCount();
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(SwiftEndpoint endpoint, String container, String prefix) throws IOException {
+        String objectName = prefix.length() > 0 ? prefix.replaceAll("/+$", "") : null;
+        HttpURLConnection con = endpoint.open(container, objectName, "extract-archive=tar.gz");
+        con.setRequestMethod("PUT");
+        con.setDoOutput(true);
+        con.setChunkedStreamingMode(CHUNK_SIZE);
+        con.setRequestProperty("Accept", "application/json");
+        return con;
+    }
+
+    /**
+     * Swift answers a bulk request with a success status even if some of the files failed,
+     * and lists those in the body.
+     */
+    private static void checkResponse(HttpURLConnection con, String container) throws IOException {
+        SwiftEndpoint.checkResponse(con, "PUT archive to " + container);
+
+        InputStream in = con.getInputStream();
+        JSONObject result;
+        try {
+            result = JSONObject.fromObject(IOUtils.toString(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+
+        JSONArray errors = result.optJSONArray("Errors");
+        String status = result.optString("Response Status", "");
+        if ((errors != null && !errors.isEmpty()) || (status.length() > 0 && !status.startsWith("2"))) {
+            throw new IOException("Archive extraction into " + container + " failed: " + status + " " + errors);
+        }
+    }
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+}
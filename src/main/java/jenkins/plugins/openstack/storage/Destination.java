@@ -9,6 +9,8 @@ package jenkins.plugins.openstack.storage;
  * construct a structure in the object name.  That is, a put of file.txt to bucket name
  * of "mybucket/v1" will cause the object "v1/file.txt" to be created in the mybucket.
  * 
+ * The file name can itself contain slashes, see {@link #relativePath(String, String)}.
+ * 
  */
 public class Destination {
   public final String bucketName; 
@@ -29,6 +31,18 @@ public class Destination {
     }
   }
 
+  /**
+   * Gets the path of a file relative to a base directory, with forward slashes, to be used as
+   * the file name of a {@link Destination} when the directory structure is kept.
+   */
+  public static String relativePath(final String baseDir, final String path) {
+    final String base = baseDir.replace('\\', '/').replaceAll("/+$", "") + "/";
+    final String file = path.replace('\\', '/');
+    if (!file.startsWith(base))
+      throw new IllegalArgumentException(path + " is not under " + baseDir);
+    return file.substring(base.length());
+  }
+
 @Override
  public String toString() {
    return "Destination [bucketName="+bucketName+", objectName="+objectName+"]";
@@ -0,0 +1,115 @@
+package jenkins.plugins.openstack.storage;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Uploads a file to the object store from wherever the file is, so that on a slave
+ * the bytes go straight from its disk to Swift instead of through the master.
+ * The file can be compressed on the way, since that is where the CPU is cheapest.
+ *
+ * @author Justin SB
+ */
+final class DirectUpload implements FileCallable<Long> {
+    private final SwiftEndpoint endpoint;
+    private final String container;
+    private final String objectName;
+    private final boolean gzip;
+    private final String sourceMd5;
+
+    /**
+     * @param gzip
+     *      Whether to compress the file on the way, and store it with "Content-Encoding: gzip".
+     * @param sourceMd5
+     *      MD5 of the file, kept in the metadata of the object, or null.
+     */
+    DirectUpload(SwiftEndpoint endpoint, String container, String objectName, boolean gzip, String sourceMd5) {
+        this.endpoint = endpoint;
+        this.container = container;
+        this.objectName = objectName;
+        this.gzip = gzip;
+        this.sourceMd5 = sourceMd5;
+    }
+
+    public Long invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        return put(endpoint, container, objectName, new FileInputStream(f), f.length(), gzip, sourceMd5);
+    }
+
+    /**
+     * Uploads the stream as the given object, and closes it.
+     * This is also how the master uploads compressed files when the slave doesn't upload them itself.
+     *
+     * @param sourceMd5
+     *      MD5 of the content before compression, kept in the metadata of the object, since the
+     *      ETag of a compressed object is the MD5 of what was sent. Null if not known.
+     * @return the number of bytes sent.
+     */
+    static long put(SwiftEndpoint endpoint, String container, String objectName, InputStream in, long length, boolean gzip, String sourceMd5) throws IOException {
+        try {
+            HttpURLConnection con = endpoint.open(container, objectName);
+            try {
+                con.setRequestMethod("PUT");
+                con.setDoOutput(true);
+                if (sourceMd5 != null)
+                    con.setRequestProperty(OpenstackStorage.SOURCE_MD5, sourceMd5);
+                if (gzip) {
+                    // the compressed size is only known at the end
+                    con.setChunkedStreamingMode(CHUNK_SIZE);
+                    con.setRequestProperty("Content-Encoding", "gzip");
+                } else if (length <= Integer.MAX_VALUE)
+                    con.setFixedLengthStreamingMode((int) length);
+                else
+                    con.setChunkedStreamingMode(CHUNK_SIZE);
+
+                CountingOutputStream sent = new CountingOutputStream(con.getOutputStream());
+                OutputStream out = gzip ? new GZIPOutputStream(sent, CHUNK_SIZE) : sent;
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    out.close();
+                }
+                SwiftEndpoint.checkResponse(con, "PUT " + container + "/" + objectName);
+                return sent.getByteCount();
+            } finally {
+                con.disconnect();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Whether compressing a file with this name is likely to make it smaller.
+     * Files that are compressed already only get bigger and cost CPU time.
+     */
+    static boolean isCompressible(String name) {
+        String lower = name.toLowerCase(Locale.ENGLISH);
+        for (String ext : COMPRESSED_EXTENSIONS) {
+            if (lower.endsWith(ext))
+                return false;
+        }
+        return true;
+    }
+
+    private static final String[] COMPRESSED_EXTENSIONS = {
+        ".gz", ".tgz", ".bz2", ".tbz2", ".xz", ".txz", ".lzma", ".zst", ".z", ".7z", ".rar",
+        ".zip", ".jar", ".war", ".ear", ".hpi", ".jpi", ".apk", ".deb", ".rpm", ".dmg", ".iso", ".qcow2",
+        ".png", ".jpg", ".jpeg", ".gif", ".webp", ".mp3", ".mp4", ".mkv", ".avi", ".mov", ".pdf",
+    };
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final long serialVersionUID = 1L;
+}
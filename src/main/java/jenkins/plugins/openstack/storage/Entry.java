@@ -11,4 +11,19 @@ public final class Entry {
      * <p>
      */
     public String sourceFile;
+    /**
+     * Directory, relative to the workspace root, that {@link #sourceFile} is relative to.
+     * Can contain macros. If set, object names keep the path of the files relative to it;
+     * if not, only their file name is kept.
+     */
+    public String baseDir;
+    /**
+     * Whether the matching files are uploaded as one archive that the object store
+     * extracts, rather than one by one.
+     */
+    public boolean bundle;
+    /**
+     * Whether the files are gzipped on the way, except those that are compressed already.
+     */
+    public boolean compress;
 }
@@ -0,0 +1,81 @@
+package jenkins.plugins.openstack.storage;
+
+import hudson.util.TimeUnit2;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jenkins.plugins.openstack.OpenstackCloud;
+
+import org.openstack.client.OpenstackNotFoundException;
+import org.openstack.client.storage.OpenstackStorageClient;
+
+/**
+ * Containers of a cloud that we recently made sure exist, shared by all the publishers
+ * so that each build doesn't check its containers again.
+ *
+ * <p>
+ * A container is trusted for {@link #TTL}, or until an upload to it gets a 404.
+ * Reconfiguring the cloud starts over with an empty cache.
+ *
+ * @author Justin SB
+ */
+final class KnownContainers {
+    /**
+     * When each container has to be checked again, keyed by container name.
+     */
+    private final ConcurrentMap<String, Long> expires = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Makes sure the given container exists, unless we already did recently.
+     *
+     * @return true if we had to check.
+     */
+    boolean ensure(OpenstackStorageClient storageClient, String container) throws IOException {
+        Long until = expires.get(container);
+        if (until != null && until > System.currentTimeMillis())
+            return false;
+        OpenstackStorage.ensureBucket(storageClient, container);
+        expires.put(container, System.currentTimeMillis() + TTL);
+        return true;
+    }
+
+    /**
+     * Forgets about the given container, if the failure says it doesn't exist anymore.
+     *
+     * @return true if it did.
+     */
+    boolean forgetIfMissing(String container, Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof OpenstackNotFoundException || t instanceof FileNotFoundException) {
+                expires.remove(container);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final Map<OpenstackCloud, KnownContainers> ALL = Collections.synchronizedMap(new WeakHashMap<OpenstackCloud, KnownContainers>());
+
+    /**
+     * Gets the known containers of the given cloud.
+     */
+    static KnownContainers of(OpenstackCloud cloud) {
+        synchronized (ALL) {
+            KnownContainers known = ALL.get(cloud);
+            if (known == null)
+                ALL.put(cloud, known = new KnownContainers());
+            return known;
+        }
+    }
+
+    /**
+     * How long a container is known to exist after we checked.
+     */
+    public static long TTL = Long.getLong(KnownContainers.class.getName() + ".ttl", TimeUnit2.MINUTES.toMillis(10));
+}
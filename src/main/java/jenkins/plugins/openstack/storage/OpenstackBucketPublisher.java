@@ -17,20 +17,35 @@ import org.openstack.client.common.OpenstackSession;
 import org.openstack.client.storage.OpenstackStorageClient;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import jenkins.plugins.openstack.OpenstackCloud;
 
 public final class OpenstackBucketPublisher extends Recorder implements Describable<Publisher> {
     private String cloudId;
+
+    /**
+     * Maximum number of files uploaded at the same time, or empty for {@link #DEFAULT_PARALLELISM}.
+     */
+    private String parallelism;
+
+    /**
+     * Whether slaves upload their files to the object store themselves.
+     */
+    private boolean directUpload;
+
+    /**
+     * Whether files that are already in the container with the same content are skipped.
+     */
+    private boolean incremental;
     
     @Extension
     public static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
@@ -72,6 +87,38 @@ public final class OpenstackBucketPublisher extends Recorder implements Describa
         this.cloudId = cloudId;
     }
 
+    public String getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(String parallelism) {
+        this.parallelism = Util.fixEmptyAndTrim(parallelism);
+    }
+
+    public boolean isDirectUpload() {
+        return directUpload;
+    }
+
+    public void setDirectUpload(boolean directUpload) {
+        this.directUpload = directUpload;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    int getParallelismCount() {
+        try {
+            return Math.max(1, Integer.parseInt(parallelism));
+        } catch (NumberFormatException e) {
+            return DEFAULT_PARALLELISM;
+        }
+    }
+
     protected void log(final PrintStream logger, final String message) {
         logger.println(StringUtils.defaultString(getDescriptor().getDisplayName()) + " " + message);
     }
@@ -87,7 +134,7 @@ public final class OpenstackBucketPublisher extends Recorder implements Describa
             return true;
         }
 
-        OpenstackCloud cloud = getProfile();
+        final OpenstackCloud cloud = getProfile();
         if (cloud == null) {
             log(listener.getLogger(), "No OpenStack cloud is configured.");
             build.setResult(Result.UNSTABLE);
@@ -96,15 +143,19 @@ public final class OpenstackBucketPublisher extends Recorder implements Describa
         log(listener.getLogger(), "Using OpenStack cloud: " + cloud.getDisplayName());
         try {
             OpenstackSession session = cloud.connect();
-            OpenstackStorageClient storageClient = session.getStorageClient();
+            final OpenstackStorageClient storageClient = session.getStorageClient();
             
             Map<String, String> envVars = build.getEnvironment(listener);
 
-            Set<String> knownExistsBuckets = Sets.newHashSet();
-            
+            final KnownContainers knownContainers = KnownContainers.of(cloud);
+            Map<String, Map<String, String>> knownEtags = Maps.newHashMap();
+
+            final UploadEngine engine = new UploadEngine(getParallelismCount(), listener.getLogger());
             for (Entry entry : entries) {
-                String expanded = Util.replaceMacro(entry.sourceFile, envVars);
-                FilePath ws = build.getWorkspace();
+                final String expanded = Util.replaceMacro(entry.sourceFile, envVars);
+                final String baseDir = Util.fixEmptyAndTrim(Util.replaceMacro(entry.baseDir, envVars));
+                // a single scan from the base directory, which then gives the object names
+                final FilePath ws = baseDir != null ? build.getWorkspace().child(baseDir) : build.getWorkspace();
                 FilePath[] paths = ws.list(expanded);
 
                 if (paths.length == 0) {
@@ -114,18 +165,81 @@ public final class OpenstackBucketPublisher extends Recorder implements Describa
                     if (error != null)
                         log(listener.getLogger(), error);
                 }
-                String bucket = Util.replaceMacro(entry.bucket, envVars);
-                for (FilePath src : paths) {
-                    if (!knownExistsBuckets.contains(bucket)) {
-                    	log(listener.getLogger(), " checking container: " + bucket);
-                    	OpenstackStorage.ensureBucket(storageClient, bucket);
-                        knownExistsBuckets.add(bucket);
+                final String bucket = Util.replaceMacro(entry.bucket, envVars);
+                if (entry.bundle && paths.length > 0) {
+                    final Destination dest = new Destination(bucket, "");
+                    knownContainers.ensure(storageClient, dest.bucketName);
+                    engine.submit(bucket + ": " + paths.length + " file(s) as one archive", new Callable<Long>() {
+                        public Long call() throws Exception {
+                            try {
+                                // a TempURL can't extract an archive, so even with direct upload it comes through here
+                                return BundleUpload.upload(SwiftEndpoint.of(cloud.connect()), dest.bucketName, dest.objectName, ws, expanded);
+                            } catch (IOException e) {
+                                if (knownContainers.forgetIfMissing(dest.bucketName, e))
+                                    knownContainers.ensure(storageClient, dest.bucketName);
+                                throw e;
+                            }
+                        }
+                    });
+                    continue;
+                }
+                final boolean compress = entry.compress;
+                for (final FilePath src : paths) {
+                    final String name = baseDir != null ? Destination.relativePath(ws.getRemote(), src.getRemote()) : src.getName();
+                    final String container = new Destination(bucket, name).bucketName;
+                    if (knownContainers.ensure(storageClient, container)) {
+                    	log(listener.getLogger(), " checked container: " + container);
                     }
 
-                    log(listener.getLogger(), " container: " + bucket + ", file: " + src.getName());
-                    OpenstackStorage.upload(storageClient, bucket, src);
+                    Map<String, String> listed = null;
+                    if (incremental) {
+                        listed = knownEtags.get(bucket);
+                        if (listed == null) {
+                            Destination prefix = new Destination(bucket, "");
+                            listed = OpenstackStorage.listEtags(SwiftEndpoint.of(session), prefix.bucketName, prefix.objectName);
+                            knownEtags.put(bucket, listed);
+                        }
+                    }
+                    final Map<String, String> etags = listed;
+
+                    engine.submit(bucket + ": " + name, new Callable<Long>() {
+                        public Long call() throws Exception {
+                            long length = src.length();
+                            boolean segmented = SegmentedUpload.isNeeded(length);
+                            boolean gzip = !segmented && compress && DirectUpload.isCompressible(name);
+                            // the ETag of a compressed or segmented object isn't the MD5 of the file, so that goes in its metadata
+                            String md5 = etags != null || segmented || gzip ? src.digest() : null;
+                            Destination dest = new Destination(bucket, name);
+                            if (etags != null) {
+                                String etag = etags.get(dest.objectName);
+                                if (etag != null && (etag.equalsIgnoreCase(md5) || ((segmented || gzip)
+                                        && md5.equalsIgnoreCase(OpenstackStorage.getSourceMd5(SwiftEndpoint.of(cloud.connect()), dest.bucketName, dest.objectName)))))
+                                    return UploadEngine.UNCHANGED;
+                            }
+                            if (segmented) {
+                                knownContainers.ensure(storageClient, SegmentedUpload.getSegmentContainer(dest.bucketName));
+                                new SegmentedUpload(cloud, src, dest.bucketName, dest.objectName, length, directUpload, md5).submitTo(engine);
+                                return UploadEngine.HANDED_OFF;
+                            }
+                            try {
+                                // connect again on each attempt, in case the token was renewed
+                                if (directUpload)
+                                    return OpenstackStorage.uploadDirect(cloud.connect(), bucket, src, name, gzip, md5);
+                                if (gzip)
+                                    // the slave only writes to Swift if direct upload is on, so compress here instead
+                                    return OpenstackStorage.uploadCompressed(cloud.connect(), bucket, src, name, md5);
+                                return OpenstackStorage.upload(cloud.connect().getStorageClient(), bucket, src, name);
+                            } catch (IOException e) {
+                                // the container may have been deleted since we checked; create it again before the retry
+                                if (knownContainers.forgetIfMissing(container, e))
+                                    knownContainers.ensure(cloud.connect().getStorageClient(), container);
+                                throw e;
+                            }
+                        }
+                    });
                 }
             }
+            engine.await();
         } catch (IOException e) {
             e.printStackTrace(listener.error("Failed to upload files"));
             build.setResult(Result.UNSTABLE);
@@ -133,6 +247,11 @@ public final class OpenstackBucketPublisher extends Recorder implements Describa
         return true;
     }
 
+    /**
+     * Number of files uploaded at the same time when the publisher doesn't say.
+     */
+    public static int DEFAULT_PARALLELISM = Integer.getInteger(OpenstackBucketPublisher.class.getName() + ".parallelism", 4);
+
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.STEP;
     }
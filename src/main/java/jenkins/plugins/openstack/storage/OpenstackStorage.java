@@ -2,13 +2,26 @@ package jenkins.plugins.openstack.storage;
 
 import hudson.FilePath;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
 
 import org.openstack.client.OpenstackException;
 import org.openstack.client.OpenstackNotFoundException;
+import org.openstack.client.common.OpenstackSession;
 import org.openstack.client.storage.OpenstackStorageClient;
 import org.openstack.model.storage.ContainerProperties;
 
+import com.google.common.collect.Maps;
+
 public class OpenstackStorage {
     public static void check(OpenstackStorageClient storageClient) {
         storageClient.root().show();
@@ -35,18 +48,138 @@ public class OpenstackStorage {
         }
     }
 
-    public static void upload(OpenstackStorageClient storageClient, String bucketName, FilePath filePath) throws IOException, InterruptedException {
+    /**
+     * Uploads the given file.
+     *
+     * @return the number of bytes uploaded.
+     */
+    public static long upload(OpenstackStorageClient storageClient, String bucketName, FilePath filePath) throws IOException, InterruptedException {
+        return upload(storageClient, bucketName, filePath, filePath.getName());
+    }
+
+    /**
+     * Uploads the given file under the given name.
+     *
+     * @param fileName
+     *      Name of the object, relative to the destination; can contain slashes.
+     * @return the number of bytes uploaded.
+     */
+    public static long upload(OpenstackStorageClient storageClient, String bucketName, FilePath filePath, String fileName) throws IOException, InterruptedException {
         if (filePath.isDirectory()) {
             throw new IOException(filePath + " is a directory");
         }
 
-        // TODO: Don't we usually want to keep the source paths??
-        final Destination dest = new Destination(bucketName, filePath.getName());
+        final Destination dest = new Destination(bucketName, fileName);
 
+        long length = filePath.length();
         try {
-            storageClient.putObject(dest.bucketName, dest.objectName, filePath.read(), filePath.length());
+            storageClient.putObject(dest.bucketName, dest.objectName, filePath.read(), length);
+            return length;
         } catch (Exception e) {
             throw new IOException("put " + dest, e);
         }
     }
+
+    /**
+     * Uploads the given file straight from the computer it is on, without going through this JVM.
+     *
+     * @param gzip
+     *      Whether to compress the file on the way. The object is then stored compressed,
+     *      with "Content-Encoding: gzip".
+     * @param sourceMd5
+     *      MD5 of the file, kept as {@link #SOURCE_MD5}, or null.
+     * @return the number of bytes uploaded.
+     */
+    public static long uploadDirect(OpenstackSession session, String bucketName, FilePath filePath, String fileName, boolean gzip, String sourceMd5) throws IOException, InterruptedException {
+        if (filePath.isDirectory()) {
+            throw new IOException(filePath + " is a directory");
+        }
+
+        final Destination dest = new Destination(bucketName, fileName);
+        return filePath.act(new DirectUpload(SwiftEndpoint.of(session).signPut(dest.bucketName, dest.objectName), dest.bucketName, dest.objectName, gzip, sourceMd5));
+    }
+
+    /**
+     * Uploads the given file compressed with gzip, reading it through this JVM, so that
+     * the token of the session never leaves it. The object is stored with "Content-Encoding: gzip".
+     *
+     * @param sourceMd5
+     *      MD5 of the file, kept as {@link #SOURCE_MD5}, or null.
+     * @return the number of bytes uploaded.
+     */
+    public static long uploadCompressed(OpenstackSession session, String bucketName, FilePath filePath, String fileName, String sourceMd5) throws IOException, InterruptedException {
+        if (filePath.isDirectory()) {
+            throw new IOException(filePath + " is a directory");
+        }
+
+        final Destination dest = new Destination(bucketName, fileName);
+        return DirectUpload.put(SwiftEndpoint.of(session), dest.bucketName, dest.objectName, filePath.read(), filePath.length(), true, sourceMd5);
+    }
+
+    /**
+     * Lists the objects under the given prefix of a container, with one request per page of
+     * {@link #LISTING_LIMIT} objects rather than one per object.
+     *
+     * @return the ETag of each object, keyed by object name.
+     */
+    static Map<String, String> listEtags(SwiftEndpoint endpoint, String bucketName, String prefix) throws IOException {
+        Map<String, String> etags = Maps.newHashMap();
+        String marker = null;
+        while (true) {
+            String query = "format=json&limit=" + LISTING_LIMIT + "&prefix=" + URLEncoder.encode(prefix, "UTF-8");
+            if (marker != null)
+                query += "&marker=" + URLEncoder.encode(marker, "UTF-8");
+
+            HttpURLConnection con = endpoint.open(bucketName, null, query);
+            JSONArray page;
+            try {
+                SwiftEndpoint.checkResponse(con, "GET " + bucketName);
+                InputStream in = con.getInputStream();
+                try {
+                    page = JSONArray.fromObject(IOUtils.toString(in, "UTF-8"));
+                } finally {
+                    in.close();
+                }
+            } finally {
+                con.disconnect();
+            }
+
+            for (Object o : page) {
+                JSONObject object = (JSONObject) o;
+                marker = object.getString("name");
+                etags.put(marker, object.optString("hash"));
+            }
+            if (page.size() < LISTING_LIMIT)
+                return etags;
+        }
+    }
+
+    /**
+     * Gets the MD5 of the content an object was uploaded from, as kept in {@link #SOURCE_MD5}.
+     *
+     * @return null if the object isn't there or doesn't have it.
+     */
+    static String getSourceMd5(SwiftEndpoint endpoint, String bucketName, String objectName) throws IOException {
+        HttpURLConnection con = endpoint.open(bucketName, objectName);
+        try {
+            con.setRequestMethod("HEAD");
+            try {
+                SwiftEndpoint.checkResponse(con, "HEAD " + bucketName + "/" + objectName);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            return con.getHeaderField(SOURCE_MD5);
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Metadata header with the MD5 of what a compressed or segmented object was uploaded from.
+     * The ETag of such an object is the MD5 of the compressed bytes, or of the ETags of its
+     * segments, so it can't tell whether the file changed.
+     */
+    static final String SOURCE_MD5 = "X-Object-Meta-Source-Md5";
+
+    private static final int LISTING_LIMIT = 10000;
 }
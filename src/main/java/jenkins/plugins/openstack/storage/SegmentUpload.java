@@ -0,0 +1,122 @@
+package jenkins.plugins.openstack.storage;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import hudson.remoting.RemoteInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Uploads one segment of a large file, from wherever the file is.
+ * Without direct upload, {@link Range} reads the segment instead, and {@link #put} uploads it from here.
+ *
+ * @return the MD5 of the segment, in hex, as Swift needs it in the manifest.
+ * @author Justin SB
+ */
+final class SegmentUpload implements FileCallable<String> {
+    private final SwiftEndpoint endpoint;
+    private final String container;
+    private final String objectName;
+    private final long offset;
+    private final long length;
+
+    SegmentUpload(SwiftEndpoint endpoint, String container, String objectName, long offset, long length) {
+        this.endpoint = endpoint;
+        this.container = container;
+        this.objectName = objectName;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            in.getChannel().position(offset);
+            return put(endpoint, container, objectName, in, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Uploads the next given number of bytes of the stream as one segment.
+     *
+     * @return the MD5 of the segment, in hex.
+     */
+    static String put(SwiftEndpoint endpoint, String container, String objectName, InputStream in, long length) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+
+        HttpURLConnection con = endpoint.open(container, objectName);
+        try {
+            con.setRequestMethod("PUT");
+            con.setDoOutput(true);
+            // segments are never more than 2GB, see SegmentedUpload.getSegmentSize()
+            con.setFixedLengthStreamingMode((int) length);
+
+            OutputStream out = con.getOutputStream();
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                long remaining = length;
+                while (remaining > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (n < 0)
+                        throw new IOException("The file of " + objectName + " is shorter than expected");
+                    md5.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                out.close();
+            }
+            SwiftEndpoint.checkResponse(con, "PUT " + container + "/" + objectName);
+
+            String etag = new String(Hex.encodeHex(md5.digest()));
+            String returned = con.getHeaderField("ETag");
+            if (returned != null && !etag.equalsIgnoreCase(returned.replace("\"", "")))
+                throw new IOException("Segment " + objectName + " was corrupted in transit");
+            return etag;
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Opens the file where it is, positioned at the start of a segment, and streams it back here.
+     * Only the bytes that are read cross the channel, unlike with {@link hudson.FilePath#read()}
+     * and skipping to the segment.
+     */
+    static final class Range implements FileCallable<InputStream> {
+        private final long offset;
+
+        Range(long offset) {
+            this.offset = offset;
+        }
+
+        public InputStream invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            FileInputStream in = new FileInputStream(f);
+            in.getChannel().position(offset);
+            return new RemoteInputStream(in);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long serialVersionUID = 1L;
+}
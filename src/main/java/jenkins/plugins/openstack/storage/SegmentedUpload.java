@@ -0,0 +1,203 @@
+package jenkins.plugins.openstack.storage;
+
+import hudson.FilePath;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.plugins.openstack.OpenstackCloud;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Uploads a large file as a Swift static large object: the file is split into segments of
+ * {@link #SEGMENT_SIZE} bytes that go up in parallel and are retried on their own, and once
+ * they are all there, a manifest stitches them together under the object name.
+ *
+ * <p>
+ * The segments go to the "&lt;container&gt;_segments" container, under a prefix that is
+ * unique to this upload, the same layout the swift command line client uses. Once the new
+ * manifest is in place, the segments of the earlier uploads of the object are deleted.
+ *
+ * @author Justin SB
+ */
+final class SegmentedUpload {
+    private final OpenstackCloud cloud;
+    private final FilePath file;
+    private final String container;
+    private final String objectName;
+    private final long length;
+    private final boolean direct;
+    private final String sourceMd5;
+
+    private final String[] etags;
+    private final AtomicInteger remaining;
+    private final long started;
+    private final String prefix;
+
+    /**
+     * @param direct
+     *      Whether the segments go up straight from the computer the file is on. Otherwise they
+     *      are streamed through this JVM, so that the token never leaves it.
+     * @param sourceMd5
+     *      MD5 of the whole file, kept in the metadata of the manifest, since its ETag isn't that.
+     */
+    SegmentedUpload(OpenstackCloud cloud, FilePath file, String container, String objectName, long length, boolean direct, String sourceMd5) {
+        this.cloud = cloud;
+        this.file = file;
+        this.container = container;
+        this.objectName = objectName;
+        this.length = length;
+        this.direct = direct;
+        this.sourceMd5 = sourceMd5;
+
+        int count = (int) ((length + getSegmentSize() - 1) / getSegmentSize());
+        this.etags = new String[count];
+        this.remaining = new AtomicInteger(count);
+        this.started = System.currentTimeMillis();
+        this.prefix = objectName + "/" + started + "/" + length + "/";
+    }
+
+    /**
+     * Whether a file of the given size should be uploaded in segments.
+     */
+    static boolean isNeeded(long length) {
+        return length > getSegmentSize();
+    }
+
+    /**
+     * Container where the segments of the objects of the given container go.
+     */
+    static String getSegmentContainer(String container) {
+        return container + "_segments";
+    }
+
+    /**
+     * Queues the segments on the engine; the manifest is uploaded by whichever segment finishes last.
+     */
+    void submitTo(UploadEngine engine) {
+        for (int i = 0; i < etags.length; i++) {
+            final int index = i;
+            engine.submit(container + ": " + objectName + " segment " + (i + 1) + "/" + etags.length, new Callable<Long>() {
+                public Long call() throws Exception {
+                    long offset = index * getSegmentSize();
+                    long size = Math.min(getSegmentSize(), length - offset);
+                    if (etags[index] == null) {
+                        // on a retry because the manifest failed, the segment is already there
+                        etags[index] = direct
+                                ? file.act(new SegmentUpload(SwiftEndpoint.of(cloud.connect()).signPut(getSegmentContainer(container), getSegmentName(index)),
+                                        getSegmentContainer(container), getSegmentName(index), offset, size))
+                                : putThroughHere(offset, size, index);
+                        if (remaining.decrementAndGet() > 0)
+                            return size;
+                    }
+                    putManifest();
+                    deleteOlderSegments();
+                    return size;
+                }
+            });
+        }
+    }
+
+    private String putThroughHere(long offset, long size, int index) throws IOException, InterruptedException {
+        InputStream in = file.act(new SegmentUpload.Range(offset));
+        try {
+            return SegmentUpload.put(SwiftEndpoint.of(cloud.connect()), getSegmentContainer(container), getSegmentName(index), in, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    private String getSegmentName(int index) {
+        return prefix + String.format("%08d", index);
+    }
+
+    private void putManifest() throws IOException {
+        JSONArray manifest = new JSONArray();
+        for (int i = 0; i < etags.length; i++) {
+            JSONObject segment = new JSONObject();
+            segment.put("path", "/" + getSegmentContainer(container) + "/" + getSegmentName(i));
+            segment.put("etag", etags[i]);
+            segment.put("size_bytes", Math.min(getSegmentSize(), length - i * getSegmentSize()));
+            manifest.add(segment);
+        }
+        byte[] body = manifest.toString().getBytes("UTF-8");
+
+        HttpURLConnection con = SwiftEndpoint.of(cloud.connect()).open(container, objectName, "multipart-manifest=put");
+        try {
+            con.setRequestMethod("PUT");
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(body.length);
+            con.setRequestProperty(OpenstackStorage.SOURCE_MD5, sourceMd5);
+            OutputStream out = con.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            SwiftEndpoint.checkResponse(con, "PUT manifest of " + container + "/" + objectName);
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Deletes the segments of the earlier uploads of this object, which the new manifest replaced.
+     * Uploads that started after this one are left alone, as they may still be in progress.
+     * Failing to delete only leaves garbage behind, so it doesn't fail the upload.
+     */
+    private void deleteOlderSegments() {
+        String segments = getSegmentContainer(container);
+        try {
+            SwiftEndpoint endpoint = SwiftEndpoint.of(cloud.connect());
+            for (String name : OpenstackStorage.listEtags(endpoint, segments, objectName + "/").keySet()) {
+                // <objectName>/<started>/<length>/<index>
+                String[] parts = name.substring(objectName.length() + 1).split("/");
+                long uploaded;
+                try {
+                    uploaded = Long.parseLong(parts[0]);
+                } catch (NumberFormatException e) {
+                    continue; // not one of ours
+                }
+                if (parts.length != 3 || uploaded >= started)
+                    continue;
+
+                HttpURLConnection con = endpoint.open(segments, name);
+                try {
+                    con.setRequestMethod("DELETE");
+                    try {
+                        SwiftEndpoint.checkResponse(con, "DELETE " + segments + "/" + name);
+                    } catch (FileNotFoundException e) {
+                        // someone else cleaned up already
+                    }
+                } finally {
+                    con.disconnect();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete the old segments of " + container + "/" + objectName, e);
+        }
+    }
+
+    /**
+     * Size of the segments, capped so that each segment can be streamed with a fixed length.
+     */
+    static long getSegmentSize() {
+        return Math.max(1, Math.min(SEGMENT_SIZE, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Size of the segments of large files. Files up to this size are uploaded in one piece.
+     * Segments are streamed with a fixed length, which can't be more than 2GB, so larger values are capped to that.
+     */
+    public static long SEGMENT_SIZE = Long.getLong(SegmentedUpload.class.getName() + ".segmentSize", 512L * 1024 * 1024);
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentedUpload.class.getName());
+}
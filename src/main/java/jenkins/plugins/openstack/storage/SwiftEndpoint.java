@@ -0,0 +1,225 @@
+package jenkins.plugins.openstack.storage;
+
+import hudson.util.TimeUnit2;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.openstack.client.common.OpenstackSession;
+import org.openstack.model.identity.Service;
+import org.openstack.model.identity.ServiceEndpoint;
+
+/**
+ * Where and how to talk to the object store directly over HTTP, without the OpenStack bindings.
+ *
+ * <p>
+ * The master talks to Swift with the token of its session. What gets sent to the slaves is
+ * made by {@link #signPut} instead: it carries no token, only a TempURL signed on the master
+ * that lets it PUT one object for {@link #TEMP_URL_TTL}.
+ *
+ * @author Justin SB
+ */
+final class SwiftEndpoint implements Serializable {
+    /**
+     * Storage URL of the account, without the trailing slash.
+     */
+    final String storageUrl;
+    /**
+     * Null if this endpoint can only write {@link #signedPath}.
+     */
+    final String token;
+    private final String signedPath;
+    private final String signedQuery;
+
+    /**
+     * Taken from {@link #CONNECT_TIMEOUT} and {@link #READ_TIMEOUT} on the master, as the slaves
+     * don't have its system properties.
+     */
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    SwiftEndpoint(String storageUrl, String token) {
+        this(storageUrl, token, null, null);
+    }
+
+    private SwiftEndpoint(String storageUrl, String token, String signedPath, String signedQuery) {
+        this.storageUrl = storageUrl.endsWith("/") ? storageUrl.substring(0, storageUrl.length() - 1) : storageUrl;
+        this.token = token;
+        this.signedPath = signedPath;
+        this.signedQuery = signedQuery;
+        this.connectTimeout = CONNECT_TIMEOUT;
+        this.readTimeout = READ_TIMEOUT;
+    }
+
+    /**
+     * Gets an endpoint that can only PUT the given object, with a Swift TempURL signed here,
+     * so that the token of this endpoint never leaves this JVM.
+     */
+    SwiftEndpoint signPut(String container, String objectName) throws IOException {
+        String path = container + "/" + objectName;
+        long expires = (System.currentTimeMillis() + TEMP_URL_TTL) / 1000;
+        // Swift signs the decoded path of the request
+        String hmacBody = "PUT\n" + expires + "\n" + new URL(storageUrl).getPath() + "/" + path;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(getTempUrlKey().getBytes("UTF-8"), "HmacSHA1"));
+            String sig = new String(Hex.encodeHex(mac.doFinal(hmacBody.getBytes("UTF-8"))));
+            return new SwiftEndpoint(storageUrl, null, path, "temp_url_sig=" + sig + "&temp_url_expires=" + expires);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to sign a TempURL for " + path, e);
+        }
+    }
+
+    /**
+     * Gets the TempURL key of the account, and sets one if there is none yet.
+     */
+    private String getTempUrlKey() throws IOException {
+        String key = TEMP_URL_KEYS.get(storageUrl);
+        if (key != null)
+            return key;
+
+        HttpURLConnection con = openAccount("HEAD");
+        try {
+            checkResponse(con, "HEAD account");
+            key = con.getHeaderField("X-Account-Meta-Temp-URL-Key");
+        } finally {
+            con.disconnect();
+        }
+
+        if (key == null) {
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            key = new String(Hex.encodeHex(secret));
+            con = openAccount("POST");
+            try {
+                con.setRequestProperty("X-Account-Meta-Temp-URL-Key", key);
+                checkResponse(con, "POST account");
+            } finally {
+                con.disconnect();
+            }
+        }
+        TEMP_URL_KEYS.put(storageUrl, key);
+        return key;
+    }
+
+    private HttpURLConnection openAccount(String method) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(storageUrl).openConnection();
+        con.setRequestMethod(method);
+        con.setRequestProperty("X-Auth-Token", token);
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        return con;
+    }
+
+    /**
+     * Opens a connection to the given object, or to the container itself if the object name is null.
+     */
+    HttpURLConnection open(String container, String objectName) throws IOException {
+        return open(container, objectName, null);
+    }
+
+    /**
+     * Opens a connection to the given object, with the given query string.
+     */
+    HttpURLConnection open(String container, String objectName, String query) throws IOException {
+        if (token == null) {
+            if (!(container + "/" + objectName).equals(signedPath))
+                throw new IOException("Only " + signedPath + " can be written with this TempURL, not " + container + "/" + objectName);
+            query = query != null ? signedQuery + "&" + query : signedQuery;
+        }
+        String url = storageUrl + "/" + encodePath(container);
+        if (objectName != null)
+            url += "/" + encodePath(objectName);
+        if (query != null)
+            url += "?" + query;
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        if (token != null)
+            con.setRequestProperty("X-Auth-Token", token);
+        // a stalled request fails with a SocketTimeoutException, which the upload engine retries
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        return con;
+    }
+
+    /**
+     * Throws if the response isn't a 2xx, with a {@link FileNotFoundException} for a 404.
+     */
+    static void checkResponse(HttpURLConnection con, String what) throws IOException {
+        int code = con.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND)
+            throw new FileNotFoundException(what + " failed: not found");
+        if (code / 100 != 2)
+            throw new IOException(what + " failed: " + code + " " + con.getResponseMessage());
+    }
+
+    /**
+     * URL-encodes each segment of the path, keeping the slashes.
+     */
+    static String encodePath(String path) {
+        try {
+            StringBuilder buf = new StringBuilder();
+            String[] segments = path.split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                if (i > 0)
+                    buf.append('/');
+                buf.append(URLEncoder.encode(segments[i], "UTF-8").replace("+", "%20"));
+            }
+            return buf.toString();
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Gets the object store endpoint of the given session, authenticated with its token.
+     */
+    static SwiftEndpoint of(OpenstackSession session) throws IOException {
+        for (Service service : session.getAccess().getServiceCatalog()) {
+            if (!"object-store".equals(service.getType()))
+                continue;
+            for (ServiceEndpoint endpoint : service.getEndpoints()) {
+                if (endpoint.getPublicURL() != null)
+                    return new SwiftEndpoint(endpoint.getPublicURL(), session.getAccess().getToken().getId());
+            }
+        }
+        throw new IOException("No object-store endpoint in the service catalog");
+    }
+
+    /**
+     * How long to wait for a connection to the object store, in milliseconds.
+     */
+    public static int CONNECT_TIMEOUT = Integer.getInteger(SwiftEndpoint.class.getName() + ".connectTimeout", (int) TimeUnit2.SECONDS.toMillis(30));
+
+    /**
+     * How long to wait for data from the object store, in milliseconds. Swift only answers a PUT
+     * once it has checked the whole object, so this needs to allow for that on large segments.
+     */
+    public static int READ_TIMEOUT = Integer.getInteger(SwiftEndpoint.class.getName() + ".readTimeout", (int) TimeUnit2.MINUTES.toMillis(5));
+
+    /**
+     * How long a TempURL given to a slave is valid for, in milliseconds. Swift checks it
+     * when the upload starts, and each retry of an upload gets a new one.
+     */
+    public static long TEMP_URL_TTL = Long.getLong(SwiftEndpoint.class.getName() + ".tempUrlTtl", TimeUnit2.MINUTES.toMillis(15));
+
+    /**
+     * TempURL key of each account, keyed by storage URL.
+     */
+    private static final ConcurrentMap<String, String> TEMP_URL_KEYS = new ConcurrentHashMap<String, String>();
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,182 @@
+package jenkins.plugins.openstack.storage;
+
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the uploads of one publish, several at a time.
+ *
+ * <p>
+ * Each upload is retried on its own, up to {@link #MAX_ATTEMPTS} times, and the progress
+ * of the whole publish is logged every {@link #PROGRESS_INTERVAL} milliseconds rather than
+ * once per file.
+ *
+ * @author Justin SB
+ */
+final class UploadEngine {
+    private final PrintStream logger;
+    private final ExecutorService pool;
+    private final List<Future<Long>> uploads = Lists.newArrayList();
+
+    private int submitted;
+    private int completed;
+    private int failed;
+    private int unchanged;
+    private long bytes;
+    private long lastLogged;
+    private final long started = System.currentTimeMillis();
+
+    /**
+     * @param parallelism
+     *      Maximum number of uploads in flight.
+     */
+    UploadEngine(int parallelism, PrintStream logger) {
+        this.logger = logger;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        // so that the threads go away even if the publish is abandoned before await()
+        pool.allowCoreThreadTimeOut(true);
+        this.pool = pool;
+    }
+
+    /**
+     * Queues an upload.
+     *
+     * @param name
+     *      What is being uploaded, for the log.
+     * @param upload
+     *      Does the upload, and returns the number of bytes sent. It is called again if it fails,
+     *      so it must not have consumed anything that a retry would need. It may also split
+     *      the work into more uploads submitted to this engine, and return {@link #HANDED_OFF},
+     *      or find that there is nothing to upload, and return {@link #UNCHANGED}.
+     */
+    void submit(final String name, final Callable<Long> upload) {
+        Future<Long> f = pool.submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        long sent = upload.call();
+                        completed(sent);
+                        return sent;
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        if (attempt >= MAX_ATTEMPTS) {
+                            logger.println("Failed to upload " + name + " after " + attempt + " attempts");
+                            synchronized (UploadEngine.this) {
+                                failed++;
+                            }
+                            throw e;
+                        }
+                        logger.println("Failed to upload " + name + " (" + e.getMessage() + "), retrying");
+                        Thread.sleep(RETRY_DELAY * attempt);
+                    }
+                }
+            }
+        });
+        synchronized (this) {
+            submitted++;
+            uploads.add(f);
+        }
+    }
+
+    private synchronized void completed(long sent) {
+        if (sent == HANDED_OFF) {
+            submitted--;
+            return;
+        }
+        if (sent == UNCHANGED) {
+            unchanged++;
+            return;
+        }
+        completed++;
+        bytes += sent;
+        long now = System.currentTimeMillis();
+        if (now - lastLogged >= PROGRESS_INTERVAL) {
+            lastLogged = now;
+            logProgress();
+        }
+    }
+
+    private void logProgress() {
+        logger.println("Uploaded " + completed + "/" + (submitted - unchanged) + " object(s), "
+                + FileUtils.byteCountToDisplaySize(bytes) + " in "
+                + Util.getTimeSpanString(System.currentTimeMillis() - started)
+                + (unchanged > 0 ? ", " + unchanged + " unchanged" : ""));
+    }
+
+    /**
+     * Waits for all the uploads to finish.
+     *
+     * @throws IOException
+     *      if any of the uploads failed for good; the other uploads still ran to completion.
+     */
+    void await() throws IOException, InterruptedException {
+        try {
+            Throwable firstFailure = null;
+            // uploads may submit more uploads while we wait
+            for (int i = 0; ; i++) {
+                Future<Long> f;
+                synchronized (this) {
+                    if (i == uploads.size())
+                        break;
+                    f = uploads.get(i);
+                }
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (firstFailure == null)
+                        firstFailure = e.getCause();
+                }
+            }
+            synchronized (this) {
+                logProgress();
+                if (firstFailure != null)
+                    throw new IOException(failed + " upload(s) failed", firstFailure);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returned by an upload that submitted its work as other uploads, so that it isn't counted.
+     */
+    static final long HANDED_OFF = -1;
+
+    /**
+     * Returned by an upload that found the object already up to date.
+     */
+    static final long UNCHANGED = -2;
+
+    /**
+     * Number of times an upload is tried before the publish is marked as failed.
+     */
+    public static int MAX_ATTEMPTS = Integer.getInteger(UploadEngine.class.getName() + ".maxAttempts", 3);
+
+    /**
+     * Delay before the first retry of an upload; later retries wait proportionally longer.
+     */
+    public static long RETRY_DELAY = Long.getLong(UploadEngine.class.getName() + ".retryDelay", TimeUnit2.SECONDS.toMillis(2));
+
+    /**
+     * How often the progress of a publish is logged.
+     */
+    public static long PROGRESS_INTERVAL = Long.getLong(UploadEngine.class.getName() + ".progressInterval", TimeUnit2.SECONDS.toMillis(10));
+}
@@ -28,4 +28,13 @@ public class BucketnameTest {
   
   }
 
+  @Test
+  public void testRelativePathIsKeptInObjectName() {
+    assertEquals( "Destination [bucketName=my-bucket-name, objectName=foo/docs/api/index.html]", 
+        new Destination("my-bucket-name/foo", Destination.relativePath("/ws/target", "/ws/target/docs/api/index.html")).toString() );
+
+    assertEquals( "Destination [bucketName=my-bucket-name, objectName=docs/index.html]", 
+        new Destination("my-bucket-name", Destination.relativePath("c:\\ws\\target\\", "c:\\ws\\target\\docs\\index.html")).toString() );
+  }
+
 }
@@ -0,0 +1,66 @@
+package jenkins.plugins.openstack;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+import org.openstack.client.OpenstackException;
+import org.openstack.client.OpenstackNotFoundException;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+public class TemplateHealthTest {
+
+  /**
+   * What the bindings throw when Nova answers with the given status and body.
+   */
+  private static OpenstackException fault(int status, String body) throws UnsupportedEncodingException {
+    ClientResponse response = new ClientResponse(status, new InBoundHeaders(),
+        new ByteArrayInputStream(body.getBytes("UTF-8")), null);
+    return new OpenstackException("Unexpected HTTP status code: " + status, new UniformInterfaceException(response));
+  }
+
+  @Test
+  public void testOverLimitIsACapacityError() throws Exception {
+    assertTrue(TemplateHealth.isCapacityError(fault(413,
+        "{\"overLimit\": {\"code\": 413, \"message\": \"Quota exceeded for instances: Requested 1, but already used 10 of 10 instances\"}}")));
+    assertTrue(TemplateHealth.isCapacityError(fault(413, "Request Entity Too Large")));
+  }
+
+  @Test
+  public void testForbiddenIsOnlyACapacityErrorForQuota() throws Exception {
+    assertTrue(TemplateHealth.isCapacityError(new RuntimeException("create failed", fault(403,
+        "{\"forbidden\": {\"code\": 403, \"message\": \"Quota exceeded for cores: Requested 4, but already used 20 of 20 cores\"}}"))));
+    assertFalse(TemplateHealth.isCapacityError(fault(403,
+        "{\"forbidden\": {\"code\": 403, \"message\": \"Policy doesn't allow compute:create to be performed.\"}}")));
+  }
+
+  @Test
+  public void testNumbersInTheMessageAreNotAStatus() throws Exception {
+    assertFalse(TemplateHealth.isCapacityError(new RuntimeException("Failed to create server 4137a2e0-413f-4c1b-9413-e0a413413413")));
+    assertFalse(TemplateHealth.isCapacityError(new RuntimeException("{\"overLimit\": {\"code\": 413, \"message\": \"Quota exceeded\"}}")));
+    assertFalse(TemplateHealth.isCapacityError(fault(400, "{\"badRequest\": {\"code\": 400, \"message\": \"Invalid key_name provided.\"}}")));
+  }
+
+  @Test
+  public void testNoValidHostIsACapacityError() throws Exception {
+    assertTrue(TemplateHealth.isCapacityError(new ExecutionException(new ServerFaultException("4137a2e0",
+        "No valid host was found. There are not enough hosts available."))));
+    assertFalse(TemplateHealth.isCapacityError(new ServerFaultException("4137a2e0", "Build of instance 4137a2e0 aborted: Image is not active.")));
+    assertFalse(TemplateHealth.isCapacityError(new ServerFaultException("4137a2e0", "")));
+    assertFalse(TemplateHealth.isCapacityError(new RuntimeException("No valid host was found.")));
+  }
+
+  @Test
+  public void testOnlyAFaultNamingTheKeyIsAnInvalidKey() throws Exception {
+    assertTrue(OpenstackFaults.isInvalidKeyName(fault(400, "{\"badRequest\": {\"code\": 400, \"message\": \"Invalid key_name provided.\"}}")));
+    assertFalse(OpenstackFaults.isInvalidKeyName(fault(400, "{\"badRequest\": {\"code\": 400, \"message\": \"Invalid flavorRef provided.\"}}")));
+    assertFalse(OpenstackFaults.isInvalidKeyName(new OpenstackNotFoundException("Image not found")));
+  }
+}
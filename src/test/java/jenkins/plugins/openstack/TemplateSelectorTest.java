@@ -0,0 +1,53 @@
+package jenkins.plugins.openstack;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TemplateSelectorTest {
+
+  private static Map<String, Double> weights(double a, double b, double c) {
+    Map<String, Double> weights = new LinkedHashMap<String, Double>();
+    weights.put("a", a);
+    weights.put("b", b);
+    weights.put("c", c);
+    return weights;
+  }
+
+  private static final List<String> CANDIDATES = Arrays.asList("a", "b", "c");
+
+  @Test
+  public void testSharesFollowTheWeights() {
+    assertEquals("{b=6, a=3, c=1}", TemplateSelector.allocate(CANDIDATES, weights(3, 6, 1), 10).toString());
+  }
+
+  @Test
+  public void testLargestRemaindersGetTheLeftovers() {
+    // 10 * 1/3 each: 3 apiece, and the one left over goes to the first in configuration order
+    assertEquals("{a=4, b=3, c=3}", TemplateSelector.allocate(CANDIDATES, weights(1, 1, 1), 10).toString());
+
+    // shares of 2.5, 1.5 and 1: the one left over goes to the higher ranked of the two halves
+    assertEquals("{a=3, b=1, c=1}", TemplateSelector.allocate(CANDIDATES, weights(5, 3, 2), 5).toString());
+  }
+
+  @Test
+  public void testTemplatesWithoutAShareAreLeftOut() {
+    assertEquals("{b=1}", TemplateSelector.allocate(CANDIDATES, weights(1, 8, 1), 1).toString());
+    assertEquals("{a=2}", TemplateSelector.allocate(CANDIDATES, weights(1, 0, 0), 2).toString());
+  }
+
+  @Test
+  public void testAllZeroWeightsFallBackToTheFirst() {
+    assertEquals("{a=4}", TemplateSelector.allocate(CANDIDATES, weights(0, 0, 0), 4).toString());
+  }
+
+  @Test
+  public void testRankKeepsConfigurationOrderForTies() {
+    assertEquals(Arrays.asList("b", "a", "c"), TemplateSelector.rank(CANDIDATES, weights(0.5, 0.9, 0.5)));
+  }
+}